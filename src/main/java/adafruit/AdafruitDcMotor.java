@@ -37,6 +37,15 @@ public class AdafruitDcMotor implements Motor {
 	//Motor name "M1" through "M4"
 	private String motor;
 	
+	/**
+	 * Stop behaviour used by the stop() method.
+	 * COAST drives IN1 and IN2 low so the TB6612 outputs float and the motor coasts.
+	 * SHORT_BRAKE drives IN1 and IN2 high so the TB6612 shorts the motor windings.
+	 * REVERSE_BRAKE temporarily reverses the motor for brakeModeValue milliseconds
+	 * and then coasts. 
+	 */
+	public enum StopMode { COAST, SHORT_BRAKE, REVERSE_BRAKE }
+	
 	//Register addresses for PWM that controls motor speed
 	private int[] pwm;
 	//Corresponding values to control motor speed for each PWM address
@@ -57,8 +66,22 @@ public class AdafruitDcMotor implements Motor {
 	//Used in brakeMode to switch motor direction.
 	private byte[] in2Switch;
 	
+	/*
+	 * The pwm, in2 and in1 LED channels of each motor are adjacent on the PCA9685,
+	 * so the 12 registers are sent as one auto-increment burst starting at frameAddr.
+	 * The offsets locate each channel within the frame.
+	 */
+	private int frameAddr;
+	private int pwmOffset;
+	private int in2Offset;
+	private int in1Offset;
+	static final int FRAME_LENGTH = 12;
+	private final byte[] frame = new byte[FRAME_LENGTH];
+	
 	//Speed value converted to raw PWM value
 	private int  rawSpeed;
+	//Raw PWM value per quantized speed magnitude, see MotorCalibration
+	private short[] speedTable = MotorCalibration.LINEAR;
 	//Low-order byte of rawSpeed
 	private byte low;
 	//High-order byte for raw speed
@@ -73,12 +96,12 @@ public class AdafruitDcMotor implements Motor {
 	private MotorState motorState;
 	
 	/*
-	 * The brakeMode is used in the stop method to abruptly stop a motor.
-	 * If set to true, the motor is temporary reversed for a set number of
-	 * milliseconds. This mode minimizes the coasting time for a motor.
-	 * If brakeMode is set to false then the motor will coast to a stop. 
+	 * The stopMode is used in the stop method. COAST lets the motor coast
+	 * to a stop, SHORT_BRAKE stops it abruptly in a single write, and
+	 * REVERSE_BRAKE temporarily reverses the motor for a set number of
+	 * milliseconds. 
 	 */
-	private boolean brakeMode = false;
+	private StopMode stopMode = StopMode.COAST;
 	
 	/*
 	 * The brakeModeValue specifies the number of milliseconds to reverse
@@ -89,11 +112,14 @@ public class AdafruitDcMotor implements Motor {
 	 */
 	private long brakeModeValue = 35;
 	
-	//PWM values for setting a motor for power, stop, forward, and reverse directions
-	private final byte[] pwmStop    = new byte[] {0X00, 0X00, 0X00, 0X00};
+	/*
+	 * PWM values for setting a motor for power, stop, forward, and reverse directions.
+	 * Bit 4 of LEDn_ON_H is the PCA9685 full-ON bit, bit 4 of LEDn_OFF_H the full-OFF bit.
+	 */
+	private final byte[] pwmStop    = new byte[] {0X00, 0X00, 0X00, 0X10};
 	private final byte[] pwmForward = new byte[] {0X00, 0X10, 0X00, 0X00};	
 	private final byte[] pwmReverse = new byte[] {0X00, 0X00, 0X00, 0X10};	
-	private byte[] pwmPower;
+	private final byte[] pwmPower   = new byte[] {0X00, 0X00, 0X00, 0X00};
 	
 	/**
 	 * Constructor 
@@ -126,22 +152,29 @@ public class AdafruitDcMotor implements Motor {
 			pwm = new int[] {motorHat.LED8_ON_L,  motorHat.LED8_ON_H,  motorHat.LED8_OFF_L,  motorHat.LED8_OFF_H};
 			in2 = new int[] {motorHat.LED9_ON_L,  motorHat.LED9_ON_H,  motorHat.LED9_OFF_L,  motorHat.LED9_OFF_H};
 			in1 = new int[] {motorHat.LED10_ON_L, motorHat.LED10_ON_H, motorHat.LED10_OFF_L, motorHat.LED10_OFF_H};						
+			frameAddr = motorHat.LED8_ON_L;
 		}
 		else if (motor == "M2") {
 			pwm = new int[] {motorHat.LED13_ON_L, motorHat.LED13_ON_H, motorHat.LED13_OFF_L, motorHat.LED13_OFF_H};
 			in2 = new int[] {motorHat.LED12_ON_L, motorHat.LED12_ON_H, motorHat.LED12_OFF_L, motorHat.LED12_OFF_H};
 			in1 = new int[] {motorHat.LED11_ON_L, motorHat.LED11_ON_H, motorHat.LED11_OFF_L, motorHat.LED11_OFF_H};								
+			frameAddr = motorHat.LED11_ON_L;
 		}
 		else if (motor == "M3") {
 			pwm = new int[] {motorHat.LED2_ON_L,  motorHat.LED2_ON_H,  motorHat.LED2_OFF_L,  motorHat.LED2_OFF_H};
 			in2 = new int[] {motorHat.LED3_ON_L,  motorHat.LED3_ON_H,  motorHat.LED3_OFF_L,  motorHat.LED3_OFF_H};
 			in1 = new int[] {motorHat.LED4_ON_L,  motorHat.LED4_ON_H,  motorHat.LED4_OFF_L,  motorHat.LED4_OFF_H};								
+			frameAddr = motorHat.LED2_ON_L;
 		} 
 		else {
 			pwm = new int[] {motorHat.LED7_ON_L,  motorHat.LED7_ON_H,  motorHat.LED7_OFF_L,  motorHat.LED7_OFF_H};
 			in2 = new int[] {motorHat.LED6_ON_L,  motorHat.LED6_ON_H,  motorHat.LED6_OFF_L,  motorHat.LED6_OFF_H};
 			in1 = new int[] {motorHat.LED5_ON_L,  motorHat.LED5_ON_H,  motorHat.LED5_OFF_L,  motorHat.LED5_OFF_H};								
+			frameAddr = motorHat.LED5_ON_L;
 		}
+		pwmOffset = pwm[0] - frameAddr;
+		in2Offset = in2[0] - frameAddr;
+		in1Offset = in1[0] - frameAddr;
 		
 		//Command the PC9865 to stop the motor
 		pwmValues = pwmStop;
@@ -153,18 +186,14 @@ public class AdafruitDcMotor implements Motor {
 	}
 	
 	/**
-	 * Command the LED PWMs to set the motor speed and motor direction (forward or backward)
+	 * Command the LED PWMs to set the motor speed and motor direction (forward or backward).
+	 * All three LED channels of the motor go out in one I2C burst.
 	 */
 	private void sendCommands() {
-		for (int i=0; i<4; i++) {
-			motorHat.write(pwm[i],pwmValues[i]);
-		}
-		for (int i=0; i<4; i++) {
-			motorHat.write(in2[i],in2Values[i]);
-		}
-		for (int i=0; i<4; i++) {
-			motorHat.write(in1[i],in1Values[i]);
-		}		
+		System.arraycopy(pwmValues, 0, frame, pwmOffset, 4);
+		System.arraycopy(in2Values, 0, frame, in2Offset, 4);
+		System.arraycopy(in1Values, 0, frame, in1Offset, 4);
+		motorHat.write(frameAddr, frame);
 	}
 	
 	/**
@@ -172,10 +201,156 @@ public class AdafruitDcMotor implements Motor {
 	 * @param speed Valid range -1.0 to 1.0, positive numbers forward direction negative backward
 	 */
 	private void setHighLow(float speed) {
-		rawSpeed = Math.round(Math.abs(speed)*255*16);		
+		rawSpeed = toRawSpeed(speed);		
 		low  = (byte) (rawSpeed & 0xFF);  //Extract low-order byte
 		high = (byte) (rawSpeed >> 8);    //Extract high-order byte
-		pwmPower = new byte[] {0X00, 0X00, low, high};
+		pwmPower[2] = low;
+		pwmPower[3] = high;
+	}
+	
+	/**
+	 * Convert the motor speed (-1.0 to 1.0) to the raw 12-bit PWM OFF count
+	 * @param speed Valid range -1.0 to 1.0
+	 * @return raw PWM value
+	 */
+	private int toRawSpeed(float speed) {
+		return speedTable[Math.round(Math.abs(speed)*(MotorCalibration.TABLE_SIZE-1))];
+	}
+	
+	/**
+	 * Set the calibration profile used to convert speed and power to PWM values.
+	 * Takes effect with the next speed or power command.
+	 * @param calibration calibration profile, null for the uncalibrated linear response
+	 */
+	public void setCalibration(MotorCalibration calibration) {
+		speedTable = (calibration == null) ? MotorCalibration.LINEAR : calibration.getTable();
+	}
+	
+	/**
+	 * Return the motor name
+	 * @return "M1", "M2", "M3", or "M4"
+	 */
+	String getMotorName() {
+		return motor;
+	}
+	
+	/**
+	 * Encode the 12 registers that set the motor to the speed, starting at getFrameAddr(),
+	 * without sending them. A zero speed short-brakes in SHORT_BRAKE stop mode and 
+	 * coasts otherwise.
+	 * @param speed Valid range -1.0 to 1.0
+	 * @param dst buffer receiving FRAME_LENGTH values
+	 * @param offset first value in the buffer
+	 */
+	void encodeSpeed(float speed, byte[] dst, int offset) {
+		byte[] in2v;
+		byte[] in1v;
+		if (speed > 0.0) {
+			in2v = pwmForward;
+			in1v = pwmReverse;
+		}
+		else if (speed < 0.0) {
+			in2v = pwmReverse;
+			in1v = pwmForward;
+		}
+		else if (stopMode == StopMode.SHORT_BRAKE) {
+			in2v = pwmForward;
+			in1v = pwmForward;
+		}
+		else {
+			in2v = pwmStop;
+			in1v = pwmStop;
+		}
+		if (speed == 0.0) {
+			System.arraycopy(pwmStop, 0, dst, offset + pwmOffset, 4);
+		}
+		else {
+			int raw = toRawSpeed(speed);
+			dst[offset + pwmOffset]     = 0X00;
+			dst[offset + pwmOffset + 1] = 0X00;
+			dst[offset + pwmOffset + 2] = (byte) (raw & 0xFF);
+			dst[offset + pwmOffset + 3] = (byte) (raw >> 8);
+		}
+		System.arraycopy(in2v, 0, dst, offset + in2Offset, 4);
+		System.arraycopy(in1v, 0, dst, offset + in1Offset, 4);
+	}
+	
+	/**
+	 * Record a speed that was sent to the HAT outside of this class, e.g. in a RegisterFrame,
+	 * so getSpeed(), getPower(), getState() and the cached PWM values match what 
+	 * encodeSpeed() wrote. Later forward(), reverse() and stop() calls then start from 
+	 * the registers actually on the chip.
+	 * @param speed Valid range -1.0 to 1.0
+	 */
+	void track(float speed) {
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
+		this.speed = speed;
+		this.power = Math.abs(speed);
+		setHighLow(speed);
+		if (speed > 0.0) {
+			pwmValues = pwmPower;
+			in2Values = pwmForward;
+			in1Values = pwmReverse;
+			motorState = MotorState.FORWARD;
+		}
+		else if (speed < 0.0) {
+			pwmValues = pwmPower;
+			in2Values = pwmReverse;
+			in1Values = pwmForward;
+			motorState = MotorState.REVERSE;
+		}
+		else {
+			pwmValues = pwmStop;
+			in2Values = (stopMode == StopMode.SHORT_BRAKE) ? pwmForward : pwmStop;
+			in1Values = (stopMode == StopMode.SHORT_BRAKE) ? pwmForward : pwmStop;
+			motorState = MotorState.STOP;
+		}
+		commit(event, "frame", oldState);
+	}
+	
+	/**
+	 * Record the ALL_LED full-OFF burst sent by AdafruitMotorHat.emergencyStop().
+	 * The cached PWM, IN1 and IN2 values are set to full OFF like coast(), matching 
+	 * the chip, so a reverse brake after clearEmergencyStop() can not drive the motor.
+	 * The power set with power() is kept for the next forward() or reverse().
+	 */
+	void emergencyStopped() {
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
+		speed = 0.0f;
+		pwmValues = pwmStop;
+		in2Values = pwmStop;
+		in1Values = pwmStop;
+		motorState = MotorState.STOP;
+		commit(event, "emergencyStop", oldState);
+	}
+	
+	/**
+	 * Record a motor command in Java Flight Recorder, if the event is enabled
+	 */
+	private void commit(Object event, String command, MotorState oldState) {
+		if (event != null) {
+			MotorHatEvents.commitCommand(event, motorHat.getBusNumber(), motorHat.DEVICE_ADDR, motor, command,
+					oldState, motorState, motorState == MotorState.STOP ? 0.0f 
+					: (motorState == MotorState.REVERSE ? -power : power));
+		}
+	}
+	
+	/**
+	 * Return the first of the 12 consecutive registers commanding this motor
+	 * @return register address
+	 */
+	int getFrameAddr() {
+		return frameAddr;
+	}
+	
+	/**
+	 * Return the Motor HAT this motor is connected to
+	 * @return AdafruitMotorHat
+	 */
+	public AdafruitMotorHat getMotorHat() {
+		return motorHat;
 	}
 	
 	/**
@@ -184,11 +359,18 @@ public class AdafruitDcMotor implements Motor {
 	 * 
 	 */
 	public void speed(float speed) {
+		//Commands are dropped during an emergency stop
+		if (motorHat.isHalted()) {
+			return;
+		}
 		if (speed < -1.0 || speed > 1.0) {
 			System.out.println("*** Error *** Speed value must be in range -1.0 to 1.0");
 			motorHat.stopAll();
 			throw new IllegalArgumentException(Float.toString(speed));
 		}
+		//stop() records its own event for a zero speed
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
 		this.speed = speed;
 		this.power = Math.abs(this.speed);
 		setHighLow(this.speed);
@@ -198,7 +380,7 @@ public class AdafruitDcMotor implements Motor {
 		if (this.speed == 0.0) {
 			//turn off PWMs
 			stop();
-			motorState = MotorState.STOP;
+			return;
 		}
 		else if (this.speed > 0.0) {
 			//turn on PWMs for forward direction
@@ -215,6 +397,7 @@ public class AdafruitDcMotor implements Motor {
 		}
 		//Command the PCA9685 for setting speed and direction of the DC motor
 		sendCommands();		
+		commit(event, "speed", oldState);
 	}
 	
 	/**
@@ -236,6 +419,7 @@ public class AdafruitDcMotor implements Motor {
 			motorHat.stopAll();
 			throw new IllegalArgumentException(Float.toString(power));
 		}
+		this.power = power;
 		//set low-order and high-order bytes for power settings.
 		setHighLow(power);
 	}
@@ -253,12 +437,35 @@ public class AdafruitDcMotor implements Motor {
 	 * If true then the stop() method will temporarily switch the motor direction
 	 * at the same power level to quickly stop the motor movement.
 	 * If false the stop() motor will allow the motor to coast to a stop.
+	 * Equivalent to setStopMode(StopMode.REVERSE_BRAKE) or setStopMode(StopMode.COAST).
 	 * @param brakeMode 
 	 */
 	public void setBrakeMode(boolean brakeMode) {
-		this.brakeMode = brakeMode;
+		this.stopMode = brakeMode ? StopMode.REVERSE_BRAKE : StopMode.COAST;
 		
 	}
+	
+	/**
+	 * Set the stop mode for the stop() method.
+	 * StopMode.SHORT_BRAKE stops the motor abruptly without blocking the caller.
+	 * @param stopMode COAST, SHORT_BRAKE, or REVERSE_BRAKE
+	 */
+	public void setStopMode(StopMode stopMode) {
+		if (stopMode == null) {
+			System.out.println("*** Error *** stopMode must not be null");
+			motorHat.stopAll();
+			throw new IllegalArgumentException("stopMode");
+		}
+		this.stopMode = stopMode;
+	}
+	
+	/**
+	 * Return the stop mode used by the stop() method
+	 * @return COAST, SHORT_BRAKE, or REVERSE_BRAKE
+	 */
+	public StopMode getStopMode() {
+		return stopMode;
+	}
 	/**
 	 * The method specifies the number of milliseconds to use in
 	 * in brake mode for switching the motor direction to
@@ -282,12 +489,18 @@ public class AdafruitDcMotor implements Motor {
 	 */
 //	@Override
 	public void forward() {
+		if (motorHat.isHalted()) {
+			return;
+		}
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
 		pwmValues = pwmPower;
 		in2Values = pwmForward;
 		in1Values = pwmReverse;
 		//Command the PCA9685 for forward direction
 		sendCommands();
 		motorState = MotorState.FORWARD;
+		commit(event, "forward", oldState);
 	}
 
 	/**
@@ -296,18 +509,23 @@ public class AdafruitDcMotor implements Motor {
 	 */
 //	@Override
 	public void forward(long milliseconds) {
+		if (motorHat.isHalted()) {
+			return;
+		}
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
 		pwmValues = pwmPower;
 		in2Values = pwmForward;
 		in1Values = pwmReverse;
 		//Command the PCA9685 for forward direction
 		sendCommands();
 		motorState = MotorState.FORWARD;
+		commit(event, "forward", oldState);
 		
 		//Time to go to sleep
 		motorHat.sleep(milliseconds);
 		
 		stop();
-		motorState = MotorState.STOP;
 	}
 
 	/** 
@@ -315,12 +533,18 @@ public class AdafruitDcMotor implements Motor {
 	 */
 //	@Override
 	public void reverse() {
+		if (motorHat.isHalted()) {
+			return;
+		}
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
 		pwmValues = pwmPower;
 		in2Values = pwmReverse;
 		in1Values = pwmForward;
 		//Command the PCA9685 for reverse direction
 		sendCommands();
 		motorState = MotorState.REVERSE;
+		commit(event, "reverse", oldState);
 	}
 
 	/**
@@ -329,30 +553,39 @@ public class AdafruitDcMotor implements Motor {
 	 */
 //	@Override
 	public void reverse(long milliseconds) {
+		if (motorHat.isHalted()) {
+			return;
+		}
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
 		pwmValues = pwmPower;
 		in2Values = pwmReverse;
 		in1Values = pwmForward;
 		//Command the PCA9685 for reverse direction
 		sendCommands();
 		motorState = MotorState.REVERSE;
+		commit(event, "reverse", oldState);
 		
 		//Time to sleep
 		motorHat.sleep(milliseconds);
 		
-		in2Values = pwmStop;
-		in1Values = pwmStop;
-		//Command the PC9685 to stop the motor
-		sendCommands();
-		motorState = MotorState.STOP;
+		stop();
 	}
 
 	/**
-	 * Stop the motor
+	 * Stop the motor using the current stop mode
 	 */
 //	@Override
 	public void stop() {
-		//if brakeMode then temporary switch direction to quickly brake motor.
-		if (brakeMode) {
+		if (motorHat.isHalted()) {
+			return;
+		}
+		if (stopMode == StopMode.SHORT_BRAKE) {
+			brake();
+			return;
+		}
+		//if reverse brake then temporary switch direction to quickly brake motor.
+		if (stopMode == StopMode.REVERSE_BRAKE) {
 			in2Switch = in1Values;
 			in1Switch = in2Values;
 			in1Values = in1Switch;
@@ -360,10 +593,43 @@ public class AdafruitDcMotor implements Motor {
 			sendCommands();
 			motorHat.sleep(brakeModeValue);			
 		}
+		coast();
+	}
+	
+	/**
+	 * Short-brake the motor. IN1 and IN2 are set full ON and the PWM full OFF,
+	 * which the TB6612 treats as short brake. Sent as one burst, does not block.
+	 */
+	public void brake() {
+		if (motorHat.isHalted()) {
+			return;
+		}
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
+		pwmValues = pwmStop;
+		in2Values = pwmForward;
+		in1Values = pwmForward;
+		sendCommands();
+		motorState = MotorState.STOP;
+		commit(event, "brake", oldState);
+	}
+	
+	/**
+	 * Let the motor coast to a stop. IN1, IN2 and the PWM are set full OFF,
+	 * which leaves the TB6612 outputs in high impedance. Sent as one burst.
+	 */
+	public void coast() {
+		if (motorHat.isHalted()) {
+			return;
+		}
+		Object event = MotorHatEvents.beginCommand();
+		MotorState oldState = motorState;
+		pwmValues = pwmStop;
 		in2Values = pwmStop;
 		in1Values = pwmStop;
 		sendCommands();
 		motorState = MotorState.STOP;
+		commit(event, "coast", oldState);
 	}
 
 	/**
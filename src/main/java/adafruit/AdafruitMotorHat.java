@@ -2,12 +2,14 @@
 package adafruit;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
 
 /**
  * 
@@ -31,6 +33,9 @@ import com.pi4j.io.i2c.I2CFactory;
  * solder connections to alter the I2C Address. Motors are controlled with the TB6612 MOSFET driver 
  * with 1.2A per channel current capability (20ms long bursts of 3A peak).
  * 
+ * All register access goes through an I2CTransport. By default the pi4j transport
+ * is used; an I2CDevTransport or MemoryI2CTransport can be passed to the constructor.
+ * 
  * @author Eric Eliason
  */
 public  class AdafruitMotorHat {
@@ -134,12 +139,37 @@ public  class AdafruitMotorHat {
 	 */
 	private final int COMMAND_SLEEP   = 0X10; //MODE1 command, enable sleep, Oscillator off
 	private final int COMMAND_ALLCALL = 0X01; //MODE1 command, enable LED ALLCALL 	
+	private final int COMMAND_AI      = 0X20; //MODE1 command, register auto-increment for block writes
 	private final int COMMAND_OUTDRV  = 0x04; //MODE2 command, 16 LED outputs are configured with totem pole structure
 	//private final int COMMAND_INVRT   = 0X10; //MODE2 command, output logic  state is inverted
-	//private final int COMMAND_RESTART = 0X80; //MODE1 command, enable restart mode
+	private final int COMMAND_RESTART = 0X80; //MODE1 command, enable restart mode
 
-	private I2CBus motorHatI2C;
-	private I2CDevice motorHatDevice;
+	//Transport used for all register access
+	private I2CTransport transport;
+	
+	//Load the flight recorder events now rather than on the first command, see MotorHatEvents
+	static {
+		MotorHatEvents.load();
+	}
+	
+	/*
+	 * Set by emergencyStop(). While halted, write() drops every command and 
+	 * sleep() returns immediately, until clearEmergencyStop() is called.
+	 */
+	private volatile boolean halted = false;
+	//Held across the halted check and the transfer in write(), and by emergencyStop()
+	private final Object writeLock = new Object();
+	//Wakes threads blocked in sleep() on an emergency stop
+	private final Object sleepLock = new Object();
+	
+	//Internal oscillator frequency used to compute PRE_SCALE, nominally 25 MHz
+	private volatile double oscillatorFrequency = 25000000.0;
+	
+	//Set while the PCA9685 oscillator is off, see idle() and resume()
+	private volatile boolean idle = false;
+	
+	//DC motors allocated by getDcMotor()
+	private final List<AdafruitDcMotor> dcMotors = new ArrayList<AdafruitDcMotor>();
 	
 	//Map tracks if a DC motor has already been allocated.
 	private Map<String,Boolean> dcMotorAllocated = new HashMap<String,Boolean>();
@@ -160,8 +190,8 @@ public  class AdafruitMotorHat {
     //Register addresses for commanding all LED PWMs simultaneously
     private final int[]  pwmAll = new int[] {ALL_LED_ON_L,ALL_LED_ON_H,ALL_LED_OFF_L,ALL_LED_OFF_H};
     
-    //Corresponding values to stop all LED PWMs
-    private final byte[] pwmAllStop = new byte[] {0X00, 0X00, 0X00, 0X00};
+    //Corresponding values to stop all LED PWMs (full OFF bit set in ALL_LED_OFF_H)
+    private final byte[] pwmAllStop = new byte[] {0X00, 0X00, 0X00, 0X10};
    
 
     /**
@@ -204,6 +234,33 @@ public  class AdafruitMotorHat {
 		setup();
 	}
 	
+	/**
+	 * Pass the I2C transport and Adafruit Motor Hat device address to constructor.
+	 * Several Motor Hats on the same bus may share one transport.
+	 * @param transport I2CTransport for the bus the HAT is connected to
+	 * @param deviceAddr Valid addresses range 0X0060 to 0X007F
+	 */
+	public AdafruitMotorHat(I2CTransport transport, int deviceAddr) {
+		this(transport, deviceAddr, true);
+	}
+	
+	/**
+	 * Constructor used when the caller performs the configure() and wake() 
+	 * setup steps itself, e.g. for several HATs at once.
+	 * @param transport I2CTransport for the bus the HAT is connected to
+	 * @param deviceAddr Valid addresses range 0X0060 to 0X007F
+	 * @param setup true to run setup()
+	 */
+	AdafruitMotorHat(I2CTransport transport, int deviceAddr, boolean setup) {
+		checkDeviceAddr(deviceAddr);
+		DEVICE_ADDR = deviceAddr;
+		this.transport = transport;
+		I2C_BUS = transport.getBusNumber();
+		if (setup) {
+			setup();
+		}
+	}
+	
 	/**
 	 * Check for a valid Adafruit Motor Hat device address
 	 * @param deviceAddr Valid values range 0X0060 to 0X007F
@@ -220,7 +277,7 @@ public  class AdafruitMotorHat {
 	 * @param i2cBus Is this I2C Bus value valid?
 	 */
 	private void checkBus(int i2cBus) {
-		if (i2cBus != I2CBus.BUS_1 && i2cBus != I2CBus.BUS_1) {
+		if (i2cBus != I2CBus.BUS_1 && i2cBus != I2CBus.BUS_2) {
 			System.out.println("*** Error *** - Illega I2C Bus address must be I2CBus.BUS_1 or I2CBus.BUS_2");
 			throw new IllegalArgumentException(Integer.toString(i2cBus));
 		}
@@ -231,28 +288,13 @@ public  class AdafruitMotorHat {
 	 */
 	private void setup() {	
 		try {
-			motorHatI2C = I2CFactory.getInstance(I2C_BUS);		
-			motorHatDevice = motorHatI2C.getDevice(DEVICE_ADDR);
-			
-			//Enable the All Call mode to simultaneously command all LED PWMs
-			motorHatDevice.write(MODE1, (byte) COMMAND_ALLCALL);
-			
-			//16 LED outputs are configured with totem pole structure
-			motorHatDevice.write(MODE2, (byte) COMMAND_OUTDRV);
+			if (transport == null) {
+				transport = new Pi4jI2CTransport(I2C_BUS);
+			}
+			configure();
 			//wait for oscillator
 			sleep(5); 
-			
-			//read MODE1 Register to get existing state
-			int mode1 = motorHatDevice.read(MODE1);
-			if (mode1 < 0) {
-				System.out.println("*** Error *** IC2 read returns negative value.");
-				stopAll();
-				throw new IOException(Integer.toString(mode1));
-			}
-			//No sleeping allowed
-			mode1 = mode1 & ~COMMAND_SLEEP; 
-			//Write back the MODE1 register with no sleep
-			motorHatDevice.write(MODE1, (byte) mode1);
+			wake();
 			//wait for oscillator
 			sleep(5);
 		}  catch (Exception e) {
@@ -263,6 +305,39 @@ public  class AdafruitMotorHat {
    	
 	}
 	
+	/**
+	 * First setup step: set the MODE1 and MODE2 registers.
+	 * The oscillator needs 5 milliseconds before wake() is called.
+	 * @throws IOException
+	 */
+	void configure() throws IOException {
+		//Enable the All Call mode to simultaneously command all LED PWMs
+		//and auto-increment so consecutive registers can be written in one burst
+		transport.write(DEVICE_ADDR, MODE1, (byte) (COMMAND_ALLCALL | COMMAND_AI));
+		
+		//16 LED outputs are configured with totem pole structure
+		transport.write(DEVICE_ADDR, MODE2, (byte) COMMAND_OUTDRV);
+	}
+	
+	/**
+	 * Second setup step: clear the MODE1 sleep bit.
+	 * The oscillator needs 5 milliseconds before the PWM outputs are used.
+	 * @throws IOException
+	 */
+	void wake() throws IOException {
+		//read MODE1 Register to get existing state
+		int mode1 = transport.read(DEVICE_ADDR, MODE1);
+		if (mode1 < 0) {
+			System.out.println("*** Error *** IC2 read returns negative value.");
+			stopAll();
+			throw new IOException(Integer.toString(mode1));
+		}
+		//No sleeping allowed
+		mode1 = mode1 & ~COMMAND_SLEEP; 
+		//Write back the MODE1 register with no sleep
+		transport.write(DEVICE_ADDR, MODE1, (byte) mode1);
+	}
+	
 	/**
 	 * Write the 8-bit value to the indicated address
 	 * @param addr - register address I2C device
@@ -270,20 +345,143 @@ public  class AdafruitMotorHat {
 	 */
 	public void write(int addr, byte value) {		
 		try {
-			motorHatDevice.write(addr,value);
+			writeRegister(addr, value);
 		} catch (IOException e) {
 			System.out.println("*** ERROR *** Can not perform I2C write to AdafruitMotorHat Device");
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Write one register like write(), for register sequences that must stop at
+	 * the first failure.
+	 * @return false if the write was dropped by an emergency stop
+	 * @throws IOException if the transfer fails
+	 */
+	private boolean writeRegister(int addr, byte value) throws IOException {
+		Object event = MotorHatEvents.beginTransaction();
+		synchronized (writeLock) {
+			if (halted) {
+				commit(event, addr, 1, true, "dropped");
+				return false;
+			}
+			try {
+				transport.write(DEVICE_ADDR, addr, value);
+			} catch (IOException e) {
+				commit(event, addr, 1, true, e.toString());
+				throw e;
+			}
+			commit(event, addr, 1, true, "ok");
+			return true;
+		}
+	}
+
+	/**
+	 * Write a block of consecutive registers in a single I2C transaction.
+	 * Relies on the MODE1 auto-increment bit enabled in setup().
+	 * @param addr - first register address I2C device
+	 * @param values - values to write starting at the register address
+	 */
+	public void write(int addr, byte[] values) {
+		write(addr, values, 0, values.length);
+	}
+
+	/**
+	 * Write a block of consecutive registers in a single I2C transaction.
+	 * @param addr - first register address I2C device
+	 * @param values - buffer holding the values to write
+	 * @param offset - first value in the buffer to write
+	 * @param length - number of registers to write
+	 */
+	public void write(int addr, byte[] values, int offset, int length) {
+		Object event = MotorHatEvents.beginTransaction();
+		synchronized (writeLock) {
+			if (halted) {
+				commit(event, addr, length, true, "dropped");
+				return;
+			}
+			try {
+				transport.write(DEVICE_ADDR, addr, values, offset, length);
+				commit(event, addr, length, true, "ok");
+			} catch (IOException e) {
+				commit(event, addr, length, true, e.toString());
+				System.out.println("*** ERROR *** Can not perform I2C write to AdafruitMotorHat Device");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Read the 8-bit value at the indicated address
+	 * @param addr - register address I2C device
+	 * @return register value 0-255, or -1 if the read fails
+	 */
+	public int read(int addr) {
+		try {
+			return readRegister(addr);
+		} catch (IOException e) {
+			System.out.println("*** ERROR *** Can not perform I2C read from AdafruitMotorHat Device");
+			e.printStackTrace();
+			return -1;
+		}
+	}
+	
+	/**
+	 * Read one register like read(), for register sequences that must stop at
+	 * the first failure.
+	 * @throws IOException if the transfer fails
+	 */
+	private int readRegister(int addr) throws IOException {
+		Object event = MotorHatEvents.beginTransaction();
+		try {
+			int value = transport.read(DEVICE_ADDR, addr);
+			commit(event, addr, 1, false, "ok");
+			return value;
+		} catch (IOException e) {
+			commit(event, addr, 1, false, e.toString());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Record a transaction in Java Flight Recorder, if the event is enabled
+	 */
+	private void commit(Object event, int addr, int bytes, boolean write, String result) {
+		MotorHatEvents.commitTransaction(event, I2C_BUS, DEVICE_ADDR, addr, bytes, write, result);
+	}
+	
+	/**
+	 * Return the I2C bus number this Motor Hat is connected to
+	 * @return bus number
+	 */
+	public int getBusNumber() {
+		return I2C_BUS;
+	}
+	
+	/**
+	 * Return the I2C transport used by this Motor Hat
+	 * @return I2CTransport
+	 */
+	public I2CTransport getTransport() {
+		return transport;
+	}
 
 	/**
 	 * Sleep and force all motors to stop if interrupted.
+	 * Returns early if an emergency stop is triggered.
 	 * @param milliseconds Sleep time
 	 */
 	public void sleep(long milliseconds) {		
 		try {
-			Thread.sleep(milliseconds);
+			//monotonic clock, immune to wall clock adjustments
+			long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(milliseconds);
+			synchronized (sleepLock) {
+				long remaining = end - System.nanoTime();
+				while (!halted && remaining > 0) {
+					TimeUnit.NANOSECONDS.timedWait(sleepLock, remaining);
+					remaining = end - System.nanoTime();
+				}
+			}
 		} catch (InterruptedException e) {
 			System.out.println("*** ERROR *** Interrupted sleep");
 			stopAll();
@@ -294,16 +492,269 @@ public  class AdafruitMotorHat {
 	 * Stop all motors for this MotorHat. 
 	 */
 	public void stopAll() {
+		Object event = MotorHatEvents.beginTransaction();
 		try {
-			for (int i=0; i<4; i++) {
-				motorHatDevice.write(pwmAll[i], pwmAllStop[i]);
-			}
+			//One burst through ALL_LED_ON_L..ALL_LED_OFF_H
+			transport.write(DEVICE_ADDR, pwmAll[0], pwmAllStop, 0, pwmAllStop.length);
+			commit(event, pwmAll[0], pwmAllStop.length, true, "ok");
 		} catch (IOException e) {
+			commit(event, pwmAll[0], pwmAllStop.length, true, e.toString());
 			System.out.println("*** ERROR *** Can not perform I2C write to AdafruitMotorHat Device");
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Emergency stop: block all further commands and stop every PWM output with
+	 * one ALL_LED full-OFF burst. Writes from other threads, queued frames and 
+	 * timelines are dropped and threads blocked in sleep() are woken. Only a write()
+	 * already on the bus finishes before the burst is sent, so the burst is always
+	 * the last command on the bus. Stays in effect until clearEmergencyStop().
+	 * @return true if the stop burst was acknowledged
+	 */
+	public boolean emergencyStop() {
+		//set before taking the lock, so writers still waiting for it drop their command
+		halted = true;
+		boolean stopped = true;
+		Object event = MotorHatEvents.beginTransaction();
+		synchronized (writeLock) {
+			try {
+				transport.write(DEVICE_ADDR, pwmAll[0], pwmAllStop, 0, pwmAllStop.length);
+				commit(event, pwmAll[0], pwmAllStop.length, true, "ok");
+			} catch (IOException e) {
+				commit(event, pwmAll[0], pwmAllStop.length, true, e.toString());
+				System.out.println("*** ERROR *** Can not perform I2C emergency stop on AdafruitMotorHat Device");
+				e.printStackTrace();
+				stopped = false;
+			}
+		}
+		synchronized (sleepLock) {
+			sleepLock.notifyAll();
+		}
+		synchronized (dcMotors) {
+			for (AdafruitDcMotor dcMotor : dcMotors) {
+				dcMotor.emergencyStopped();
+			}
+		}
+		return stopped;
+	}
+	
+	/**
+	 * Accept commands again after an emergency stop. Motors stay stopped until commanded.
+	 */
+	public void clearEmergencyStop() {
+		halted = false;
+	}
+	
+	/**
+	 * Is an emergency stop in effect?
+	 * @return true if commands are being dropped
+	 */
+	public boolean isHalted() {
+		return halted;
+	}
+	
+	/**
+	 * Put the PCA9685 to sleep to save power while parked. The oscillator is turned
+	 * off and all outputs stop, but the PWM registers keep their values, so resume()
+	 * brings every channel back without re-running setup() or re-sending motor commands.
+	 * Motors that were running will run again on resume(); stop them first if that
+	 * is not wanted. Like write(), does nothing during an emergency stop.
+	 */
+	public void idle() {
+		try {
+			int mode1 = readRegister(MODE1);
+			//writing 0 to RESTART has no effect, writing 1 would restart the PWMs
+			if (writeRegister(MODE1, (byte) ((mode1 & ~COMMAND_RESTART) | COMMAND_SLEEP))) {
+				idle = true;
+			}
+		} catch (IOException e) {
+			System.out.println("*** ERROR *** Can not put AdafruitMotorHat Device to sleep");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Wake the PCA9685 after idle() and restart the PWM channels with their
+	 * previous values. Follows the restart sequence of the PCA9685 data sheet, 
+	 * section 7.3.1.1: clear SLEEP, wait 500 microseconds for the oscillator,
+	 * then write RESTART if the chip flagged running channels.
+	 * Like write(), does nothing during an emergency stop.
+	 */
+	public void resume() {
+		try {
+			int mode1 = readRegister(MODE1);
+			boolean restart = (mode1 & COMMAND_RESTART) != 0;
+			mode1 = mode1 & ~COMMAND_SLEEP & ~COMMAND_RESTART;
+			if (!writeRegister(MODE1, (byte) mode1)) {
+				return;
+			}
+			//wait for oscillator
+			waitMicros(500);
+			if (restart) {
+				writeRegister(MODE1, (byte) (mode1 | COMMAND_RESTART));
+			}
+			idle = false;
+		} catch (IOException e) {
+			System.out.println("*** ERROR *** Can not wake up AdafruitMotorHat Device");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Is the PCA9685 asleep after idle()?
+	 * @return true if the oscillator is off
+	 */
+	public boolean isIdle() {
+		return idle;
+	}
+	
+	/**
+	 * Set the oscillator frequency used to compute the PWM prescale. The PCA9685 
+	 * internal oscillator is nominally 25 MHz but varies between chips; measure the
+	 * PWM output and set the actual value for accurate frequencies.
+	 * @param hertz oscillator frequency, 20 MHz to 30 MHz, or up to 50 MHz for an external clock
+	 */
+	public void setOscillatorFrequency(double hertz) {
+		if (hertz < 20000000.0 || hertz > 50000000.0) {
+			System.out.println("*** Error *** Oscillator frequency must be in range 20 MHz to 50 MHz");
+			throw new IllegalArgumentException(Double.toString(hertz));
+		}
+		oscillatorFrequency = hertz;
+	}
+	
+	/**
+	 * Return the oscillator frequency used to compute the PWM prescale
+	 * @return frequency in Hz
+	 */
+	public double getOscillatorFrequency() {
+		return oscillatorFrequency;
+	}
+	
+	/**
+	 * Set the PWM frequency of all 16 channels. The PCA9685 only accepts a new
+	 * PRE_SCALE while asleep, so the outputs are off for about 500 microseconds
+	 * while the oscillator restarts; PWM values are kept. A HAT put to sleep with
+	 * idle() stays asleep. Like write(), does nothing during an emergency stop.
+	 * @param hertz PWM frequency, about 24 Hz to 1526 Hz with the 25 MHz oscillator
+	 */
+	public void setPwmFrequency(double hertz) {
+		setPwmFrequency(hertz, this);
+	}
+	
+	/**
+	 * Set the PWM frequency of a stack of HATs in one pass: every HAT is put to sleep
+	 * and given its prescale, then all are woken, share a single oscillator wait and
+	 * are restarted. 
+	 * @param hertz PWM frequency, about 24 Hz to 1526 Hz with the 25 MHz oscillator
+	 * @param hats Motor HATs, each using its own oscillator frequency
+	 */
+	public static void setPwmFrequency(double hertz, AdafruitMotorHat... hats) {
+		int[] prescales = new int[hats.length];
+		for (int i = 0; i < hats.length; i++) {
+			prescales[i] = hats[i].prescale(hertz);
+		}
+		int[] modes = new int[hats.length];
+		boolean wait = false;
+		for (int i = 0; i < hats.length; i++) {
+			modes[i] = hats[i].writePrescale(prescales[i]);
+		}
+		for (int i = 0; i < hats.length; i++) {
+			wait |= hats[i].wakeAfterPrescale(modes[i]);
+		}
+		if (wait) {
+			//wait for oscillator, once for the whole stack
+			hats[0].waitMicros(500);
+		}
+		for (int i = 0; i < hats.length; i++) {
+			hats[i].restartAfterPrescale(modes[i]);
+		}
+	}
+	
+	/**
+	 * Return the PWM frequency set in the PRE_SCALE register
+	 * @return frequency in Hz, or -1 if the register can not be read
+	 */
+	public double getPwmFrequency() {
+		int prescale = read(PRE_SCALE);
+		return prescale < 0 ? -1 : oscillatorFrequency / (4096.0 * (prescale + 1));
+	}
+	
+	/**
+	 * Compute PRE_SCALE for a PWM frequency, data sheet equation 1
+	 */
+	private int prescale(double hertz) {
+		int prescale = (int) Math.round(oscillatorFrequency / (4096.0 * hertz)) - 1;
+		if (hertz <= 0 || prescale < 3 || prescale > 255) {
+			System.out.println("*** Error *** PWM frequency out of range for the oscillator frequency");
+			throw new IllegalArgumentException(Double.toString(hertz));
+		}
+		return prescale;
+	}
+	
+	/**
+	 * Put the chip to sleep and write PRE_SCALE
+	 * @return MODE1 before the change, -1 on failure or during an emergency stop
+	 */
+	private int writePrescale(int prescale) {
+		try {
+			int mode1 = readRegister(MODE1);
+			if (!writeRegister(MODE1, (byte) ((mode1 & ~COMMAND_RESTART) | COMMAND_SLEEP))) {
+				return -1;
+			}
+			writeRegister(PRE_SCALE, (byte) prescale);
+			return mode1;
+		} catch (IOException e) {
+			System.out.println("*** ERROR *** Can not set PWM frequency of AdafruitMotorHat Device");
+			e.printStackTrace();
+			return -1;
+		}
+	}
+	
+	/**
+	 * Restore MODE1 without restarting
+	 * @return true if the chip was awake and needs the oscillator wait and restart
+	 */
+	private boolean wakeAfterPrescale(int mode1) {
+		if (mode1 < 0) {
+			return false;
+		}
+		try {
+			return writeRegister(MODE1, (byte) (mode1 & ~COMMAND_RESTART)) && (mode1 & COMMAND_SLEEP) == 0;
+		} catch (IOException e) {
+			System.out.println("*** ERROR *** Can not set PWM frequency of AdafruitMotorHat Device");
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Restart the PWM channels once the oscillator is running
+	 */
+	private void restartAfterPrescale(int mode1) {
+		if (mode1 < 0 || (mode1 & COMMAND_SLEEP) != 0) {
+			return;
+		}
+		try {
+			writeRegister(MODE1, (byte) (mode1 | COMMAND_RESTART));
+		} catch (IOException e) {
+			System.out.println("*** ERROR *** Can not set PWM frequency of AdafruitMotorHat Device");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Wait at least the number of microseconds, for oscillator start-up delays
+	 * shorter than sleep() can express.
+	 */
+	private void waitMicros(long micros) {
+		long end = System.nanoTime() + micros * 1000L;
+		long remaining;
+		while ((remaining = end - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
 	/**
 	 * Create an AdafruitDcMotor instance for a motor.
 	 * Check for a valid motor value and that the motor has not been
@@ -326,6 +777,10 @@ public  class AdafruitMotorHat {
     	dcMotorAllocated.put(motor, true);
     	
     	//Create an instance for this motor.
-    	return new AdafruitDcMotor(AdafruitMotorHat.this, motor);
+    	AdafruitDcMotor dcMotor = new AdafruitDcMotor(AdafruitMotorHat.this, motor);
+    	synchronized (dcMotors) {
+    		dcMotors.add(dcMotor);
+    	}
+    	return dcMotor;
     }
 }
@@ -0,0 +1,141 @@
+package adafruit;
+
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinState;
+
+/**
+ * Emergency-stop lane for a stack of Motor HATs.
+ * 
+ * trigger() does not go through the ordinary command path. It runs on the calling
+ * thread and does not wait for queued frames, timelines or sleeping motor 
+ * commands; those are dropped by the halted HATs. In order it:
+ * 1. drives the PCA9685 OE (output enable, active low) line high through an 
+ *    optional GPIO pin, which cuts every PWM output in hardware
+ * 2. sends the ALL_LED full-OFF burst to every HAT, so the outputs stay off
+ *    when OE is released
+ * 
+ * The OE pad of the Motor HAT must be wired to the GPIO pin for step 1.
+ * The latency of each step is measured and exposed.
+ */
+public class EmergencyStop {
+	
+	private final AdafruitMotorHat[] hats;
+	private final GpioPinDigitalOutput outputEnable;
+	
+	//Latency of the last trigger, nanoseconds
+	private volatile long outputEnableNanos;
+	private volatile long latencyNanos;
+	private volatile long maxLatencyNanos;
+	private volatile int triggers;
+	private volatile boolean lastStopAcknowledged;
+	
+	/**
+	 * Emergency stop through I2C only
+	 * @param hats Motor HATs to stop
+	 */
+	public EmergencyStop(AdafruitMotorHat... hats) {
+		this(null, hats);
+	}
+	
+	/**
+	 * Emergency stop through the OE line and I2C
+	 * @param outputEnable GPIO output wired to the OE pad of the HATs, may be null
+	 * @param hats Motor HATs to stop
+	 */
+	public EmergencyStop(GpioPinDigitalOutput outputEnable, AdafruitMotorHat... hats) {
+		this.outputEnable = outputEnable;
+		this.hats = hats.clone();
+		if (outputEnable != null) {
+			//OE low enables the outputs
+			outputEnable.low();
+		}
+	}
+	
+	/**
+	 * Provision a GPIO pin for the OE line, outputs enabled
+	 * @param pin GPIO pin wired to the OE pad, e.g. RaspiPin.GPIO_04
+	 * @return output pin to pass to the constructor
+	 */
+	public static GpioPinDigitalOutput provisionOutputEnable(Pin pin) {
+		GpioPinDigitalOutput output = GpioFactory.getInstance().provisionDigitalOutputPin(pin, "MotorHat OE", PinState.LOW);
+		output.setShutdownOptions(true, PinState.HIGH);
+		return output;
+	}
+	
+	/**
+	 * Stop every motor of every HAT now. The HATs drop all commands until reset().
+	 * @return true if every HAT acknowledged the stop burst
+	 */
+	public boolean trigger() {
+		long start = System.nanoTime();
+		if (outputEnable != null) {
+			outputEnable.high();
+			outputEnableNanos = System.nanoTime() - start;
+		}
+		boolean acknowledged = true;
+		for (AdafruitMotorHat hat : hats) {
+			acknowledged &= hat.emergencyStop();
+		}
+		long latency = System.nanoTime() - start;
+		latencyNanos = latency;
+		if (latency > maxLatencyNanos) {
+			maxLatencyNanos = latency;
+		}
+		lastStopAcknowledged = acknowledged;
+		triggers++;
+		if (!acknowledged) {
+			System.out.println("*** ERROR *** Emergency stop not acknowledged by every AdafruitMotorHat");
+		}
+		return acknowledged;
+	}
+	
+	/**
+	 * Re-enable the outputs and let the HATs accept commands again.
+	 * Motors stay stopped until commanded.
+	 */
+	public void reset() {
+		for (AdafruitMotorHat hat : hats) {
+			hat.clearEmergencyStop();
+		}
+		if (outputEnable != null) {
+			outputEnable.low();
+		}
+	}
+	
+	/**
+	 * @return nanoseconds from the last trigger() to the OE line cut-off, 0 without OE pin
+	 */
+	public long getOutputEnableLatencyNanos() {
+		return outputEnableNanos;
+	}
+	
+	/**
+	 * @return nanoseconds from the last trigger() until every HAT was sent the stop burst
+	 */
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+	
+	/**
+	 * @return largest trigger() latency so far, nanoseconds
+	 */
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+	
+	/**
+	 * @return number of trigger() calls
+	 */
+	public int getTriggerCount() {
+		return triggers;
+	}
+	
+	/**
+	 * @return true if every HAT acknowledged the last stop burst
+	 */
+	public boolean isLastStopAcknowledged() {
+		return lastStopAcknowledged;
+	}
+}
@@ -0,0 +1,88 @@
+package adafruit;
+
+import java.io.IOException;
+
+import com.pi4j.jni.I2C;
+
+/**
+ * I2CTransport calling the pi4j native I2C functions (com.pi4j.jni.I2C) on one
+ * /dev/i2c-N file descriptor, without the pi4j I2CBus and I2CDevice objects.
+ * 
+ * These are the same native calls pi4j's own bus and device classes make, so
+ * the transfers on the wire are identical to Pi4jI2CTransport: a block of 
+ * consecutive registers is one I2C message, one write() system call. What the
+ * backend leaves out is the pi4j bus lock and per-device object layer; it 
+ * serializes its own calls on this instance instead. It does not issue the
+ * I2C_RDWR ioctl, so it offers no multi-message combined transactions, which
+ * pi4j's native library does not expose.
+ * 
+ * The backend can be exercised without hardware using the kernel i2c-stub module:
+ *   modprobe i2c-dev
+ *   modprobe i2c-stub chip_addr=0x60
+ */
+public class I2CDevTransport implements I2CTransport {
+	
+	private final int busNumber;
+	private final String path;
+	private final int fd;
+	
+	/**
+	 * Open /dev/i2c-N for the bus number
+	 * @param i2cBus bus number, e.g. I2CBus.BUS_1
+	 * @throws IOException if the device file can not be opened
+	 */
+	public I2CDevTransport(int i2cBus) throws IOException {
+		this(i2cBus, "/dev/i2c-" + i2cBus);
+	}
+	
+	/**
+	 * Open an explicit i2c-dev device file, e.g. the bus created by i2c-stub
+	 * @param i2cBus bus number reported by getBusNumber()
+	 * @param path device file path
+	 * @throws IOException if the device file can not be opened
+	 */
+	public I2CDevTransport(int i2cBus, String path) throws IOException {
+		this.busNumber = i2cBus;
+		this.path = path;
+		this.fd = I2C.i2cOpen(path);
+		if (fd < 0) {
+			throw new IOException("Can not open " + path + " (" + fd + ")");
+		}
+	}
+
+	@Override
+	public int getBusNumber() {
+		return busNumber;
+	}
+
+	@Override
+	public synchronized void write(int deviceAddr, int register, byte value) throws IOException {
+		check(I2C.i2cWriteByte(fd, deviceAddr, register, value), deviceAddr);
+	}
+
+	@Override
+	public synchronized void write(int deviceAddr, int register, byte[] values, int offset, int length) throws IOException {
+		check(I2C.i2cWriteBytes(fd, deviceAddr, register, length, offset, values), deviceAddr);
+	}
+
+	@Override
+	public synchronized int read(int deviceAddr, int register) throws IOException {
+		int value = I2C.i2cReadByte(fd, deviceAddr, register);
+		check(value, deviceAddr);
+		return value;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		I2C.i2cClose(fd);
+	}
+	
+	/**
+	 * Native calls return a negative value on failure
+	 */
+	private void check(int result, int deviceAddr) throws IOException {
+		if (result < 0) {
+			throw new IOException(String.format("I2C transfer failed on %s device 0X%02X (%d)", path, deviceAddr, result));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package adafruit;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one AdafruitMotorHat I2C transaction.
+ * 
+ * The event is disabled by default and is enabled in the recording settings, e.g.
+ *   -XX:StartFlightRecording:settings=default,+adafruit.I2CTransaction#enabled=true
+ *   (JDK 17 syntax; older JDKs use a custom .jfc settings file)
+ * When disabled, begin(), shouldCommit() and the unused event instance are
+ * optimized away by the JIT.
+ * Only used through MotorHatEvents, so the driver also runs without jdk.jfr.
+ */
+@Name("adafruit.I2CTransaction")
+@Label("I2C Transaction")
+@Category({"Adafruit Motor HAT"})
+@Description("Register read or write on an Adafruit Motor HAT")
+@StackTrace(false)
+@Enabled(false)
+class I2CTransactionEvent extends Event {
+	
+	@Label("Bus")
+	int bus;
+	
+	@Label("Device Address")
+	int address;
+	
+	@Label("Register")
+	int register;
+	
+	@Label("Bytes")
+	@Description("Number of register values transferred")
+	int bytes;
+	
+	@Label("Write")
+	boolean write;
+	
+	@Label("Result")
+	@Description("ok, dropped (emergency stop in effect) or the I/O error")
+	String result;
+}
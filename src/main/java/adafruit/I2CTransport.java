@@ -0,0 +1,59 @@
+package adafruit;
+
+import java.io.IOException;
+
+/**
+ * Transport used by AdafruitMotorHat to reach the PCA9685 registers.
+ * 
+ * A transport serves every device on one I2C bus. Block writes rely on the 
+ * PCA9685 register auto-increment so consecutive registers are written in a
+ * single I2C transaction.
+ * 
+ * Implementations:
+ * Pi4jI2CTransport   - pi4j I2CBus/I2CDevice (default)
+ * I2CDevTransport    - pi4j native I2C calls on /dev/i2c-N, without the pi4j bus lock
+ * MemoryI2CTransport - in-memory register file, no hardware required
+ */
+public interface I2CTransport {
+
+	/**
+	 * Return the I2C bus number served by this transport
+	 * @return bus number, e.g. I2CBus.BUS_1
+	 */
+	int getBusNumber();
+
+	/**
+	 * Write the 8-bit value to a device register
+	 * @param deviceAddr I2C device address
+	 * @param register register address
+	 * @param value value to write
+	 * @throws IOException if the device does not acknowledge
+	 */
+	void write(int deviceAddr, int register, byte value) throws IOException;
+
+	/**
+	 * Write consecutive device registers in a single I2C transaction
+	 * @param deviceAddr I2C device address
+	 * @param register first register address
+	 * @param values buffer holding the values to write
+	 * @param offset first value in the buffer to write
+	 * @param length number of registers to write
+	 * @throws IOException if the device does not acknowledge
+	 */
+	void write(int deviceAddr, int register, byte[] values, int offset, int length) throws IOException;
+
+	/**
+	 * Read an 8-bit device register
+	 * @param deviceAddr I2C device address
+	 * @param register register address
+	 * @return register value 0-255
+	 * @throws IOException if the device does not acknowledge
+	 */
+	int read(int deviceAddr, int register) throws IOException;
+
+	/**
+	 * Release the bus
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
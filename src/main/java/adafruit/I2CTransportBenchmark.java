@@ -0,0 +1,129 @@
+package adafruit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the I2CTransport backends by timing a motor update, i.e. the 12 
+ * PCA9685 registers for one DC motor (PWM, IN2, IN1 channels), sent as
+ * 12 single register writes and as one auto-increment block write.
+ * 
+ * Usage:
+ *   I2CTransportBenchmark [memory] [pi4j BUS] [i2cdev BUS PATH] [-addr 0X60] [-n 20000]
+ * 
+ * pi4j and i2cdev put the same messages on the bus through the same native calls;
+ * their difference only measures the pi4j Java layer and its bus lock.
+ * 
+ * The pi4j and i2cdev backends can be run without a Motor HAT against the 
+ * kernel i2c-stub module:
+ *   modprobe i2c-dev
+ *   modprobe i2c-stub chip_addr=0x60
+ *   i2cdetect -l      (find the bus number of the "SMBus stub driver" adapter)
+ */
+public class I2CTransportBenchmark {
+	
+	//LED8_ON_L, first register of motor M1
+	private static final int FRAME_ADDR = 0X26;
+	
+	public static void main(String[] args) throws IOException {
+		List<String> names = new ArrayList<String>();
+		List<I2CTransport> transports = new ArrayList<I2CTransport>();
+		int deviceAddr = 0X60;
+		int iterations = 20000;
+		
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("memory")) {
+				names.add("memory");
+				transports.add(null);
+			}
+			else if (args[i].equals("pi4j")) {
+				int bus = Integer.parseInt(args[++i]);
+				names.add("pi4j bus " + bus);
+				transports.add(new Pi4jI2CTransport(bus));
+			}
+			else if (args[i].equals("i2cdev")) {
+				int bus = Integer.parseInt(args[++i]);
+				String path = args[++i];
+				names.add("i2cdev " + path);
+				transports.add(new I2CDevTransport(bus, path));
+			}
+			else if (args[i].equals("-addr")) {
+				deviceAddr = Integer.decode(args[++i]);
+			}
+			else if (args[i].equals("-n")) {
+				iterations = Integer.parseInt(args[++i]);
+			}
+			else {
+				System.out.println("*** Error *** Unknown argument " + args[i]);
+				throw new IllegalArgumentException(args[i]);
+			}
+		}
+		if (names.isEmpty()) {
+			names.add("memory");
+			transports.add(null);
+		}
+		//the memory transport needs the device attached at the chosen address
+		for (int i = 0; i < transports.size(); i++) {
+			if (transports.get(i) == null) {
+				MemoryI2CTransport memory = new MemoryI2CTransport(1);
+				memory.attach(deviceAddr);
+				transports.set(i, memory);
+			}
+		}
+		
+		System.out.format("%-24s %16s %16s %10s%n", "backend", "single us/update", "block us/update", "speedup");
+		for (int i = 0; i < transports.size(); i++) {
+			I2CTransport transport = transports.get(i);
+			//warm up both paths
+			singleWrites(transport, deviceAddr, iterations / 10);
+			blockWrites(transport, deviceAddr, iterations / 10);
+			
+			double single = singleWrites(transport, deviceAddr, iterations);
+			double block  = blockWrites(transport, deviceAddr, iterations);
+			System.out.format("%-24s %16.2f %16.2f %9.1fx%n", names.get(i), single, block, single / block);
+			transport.close();
+		}
+	}
+	
+	/**
+	 * Send motor updates as 12 single register writes
+	 * @return microseconds per motor update
+	 */
+	private static double singleWrites(I2CTransport transport, int deviceAddr, int iterations) throws IOException {
+		byte[] frame = new byte[12];
+		long start = System.nanoTime();
+		for (int n = 0; n < iterations; n++) {
+			fill(frame, n);
+			for (int i = 0; i < frame.length; i++) {
+				transport.write(deviceAddr, FRAME_ADDR + i, frame[i]);
+			}
+		}
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+	
+	/**
+	 * Send motor updates as one block write
+	 * @return microseconds per motor update
+	 */
+	private static double blockWrites(I2CTransport transport, int deviceAddr, int iterations) throws IOException {
+		byte[] frame = new byte[12];
+		long start = System.nanoTime();
+		for (int n = 0; n < iterations; n++) {
+			fill(frame, n);
+			transport.write(deviceAddr, FRAME_ADDR, frame, 0, frame.length);
+		}
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+	
+	/**
+	 * Fill the frame with a forward command at a speed that changes every update
+	 */
+	private static void fill(byte[] frame, int n) {
+		int raw = n % 4080;
+		frame[2]  = (byte) (raw & 0xFF);
+		frame[3]  = (byte) (raw >> 8);
+		frame[5]  = 0X10;   //IN2 full ON
+		frame[11] = 0X10;   //IN1 full OFF
+	}
+}
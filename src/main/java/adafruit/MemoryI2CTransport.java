@@ -0,0 +1,205 @@
+package adafruit;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory I2CTransport holding a 256 byte register file for each attached
+ * device. Used to run the driver without hardware, e.g. for benchmarks and
+ * simulated HAT stacks.
+ * 
+ * Attached devices start with the PCA9685 power-on register values and follow 
+ * the PCA9685 auto-increment, ALL_LED, MODE1 RESTART and PRE_SCALE behaviour. Reads and writes to an 
+ * address with no attached device fail like an unacknowledged I2C transfer.
+ * 
+ * An optional latency model holds the bus for a fixed time per transaction plus
+ * a time per byte, e.g. about 22500 ns per byte for a 400 kHz bus. Transfers are
+ * serialized like on a real bus.
+ */
+public class MemoryI2CTransport implements I2CTransport {
+	
+	//PCA9685 registers emulated by the register file
+	private static final int MODE1         = 0X00;
+	private static final int MODE2         = 0X01;
+	private static final int SUBADR1       = 0X02;
+	private static final int SUBADR2       = 0X03;
+	private static final int SUBADR3       = 0X04;
+	private static final int ALLCALLADR    = 0X05;
+	private static final int LED0_ON_L     = 0X06;
+	private static final int ALL_LED_ON_L  = 0XFA;
+	private static final int ALL_LED_OFF_H = 0XFD;
+	private static final int PRE_SCALE     = 0XFE;
+	
+	private final int busNumber;
+	
+	//Register file per 7-bit device address, null if no device is attached
+	private final byte[][] registers = new byte[128][];
+	
+	//Latency model, nanoseconds per transaction and per byte including the address byte
+	private volatile long transactionNanos;
+	private volatile long byteNanos;
+	
+	//Transaction and byte counters
+	private final AtomicLong transactions = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	
+	/**
+	 * Create an empty bus
+	 * @param i2cBus bus number reported by getBusNumber()
+	 */
+	public MemoryI2CTransport(int i2cBus) {
+		this.busNumber = i2cBus;
+	}
+	
+	/**
+	 * Attach a simulated PCA9685 at the device address with power-on register values
+	 * @param deviceAddr 7-bit I2C device address
+	 */
+	public synchronized void attach(int deviceAddr) {
+		byte[] regs = new byte[256];
+		regs[MODE1] = 0X11;       //SLEEP | ALLCALL
+		regs[MODE2] = 0X04;       //OUTDRV
+		regs[SUBADR1] = (byte) 0XE2;
+		regs[SUBADR2] = (byte) 0XE4;
+		regs[SUBADR3] = (byte) 0XE8;
+		regs[ALLCALLADR] = (byte) 0XE0;
+		for (int led = 0; led < 16; led++) {
+			regs[LED0_ON_L + 4*led + 3] = 0X10; //full OFF
+		}
+		regs[PRE_SCALE] = 0X1E;   //200 Hz
+		registers[deviceAddr] = regs;
+	}
+	
+	/**
+	 * Set the bus latency model
+	 * @param transactionNanos fixed time per transaction (start, device address, stop)
+	 * @param byteNanos time per byte transferred, including the register address byte
+	 */
+	public void setLatency(long transactionNanos, long byteNanos) {
+		if (transactionNanos < 0 || byteNanos < 0) {
+			System.out.println("*** Error *** Latency must not be negative");
+			throw new IllegalArgumentException(transactionNanos + "/" + byteNanos);
+		}
+		this.transactionNanos = transactionNanos;
+		this.byteNanos = byteNanos;
+	}
+	
+	/**
+	 * Return the current value of a simulated register
+	 * @param deviceAddr 7-bit I2C device address
+	 * @param register register address
+	 * @return register value 0-255
+	 */
+	public synchronized int peek(int deviceAddr, int register) {
+		return registers[deviceAddr][register] & 0XFF;
+	}
+	
+	/**
+	 * @return number of I2C transactions performed
+	 */
+	public long getTransactions() {
+		return transactions.get();
+	}
+	
+	/**
+	 * @return number of bytes transferred, including register address bytes
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+	
+	/**
+	 * Reset the transaction and byte counters
+	 */
+	public void resetCounters() {
+		transactions.set(0);
+		bytes.set(0);
+	}
+
+	@Override
+	public int getBusNumber() {
+		return busNumber;
+	}
+
+	@Override
+	public synchronized void write(int deviceAddr, int register, byte value) throws IOException {
+		byte[] regs = device(deviceAddr);
+		store(regs, register, value);
+		transfer(2);
+	}
+
+	@Override
+	public synchronized void write(int deviceAddr, int register, byte[] values, int offset, int length) throws IOException {
+		byte[] regs = device(deviceAddr);
+		for (int i = 0; i < length; i++) {
+			store(regs, (register + i) & 0XFF, values[offset + i]);
+		}
+		transfer(length + 1);
+	}
+
+	@Override
+	public synchronized int read(int deviceAddr, int register) throws IOException {
+		byte[] regs = device(deviceAddr);
+		transfer(2);
+		return regs[register] & 0XFF;
+	}
+
+	@Override
+	public void close() {
+		//nothing to release
+	}
+	
+	/**
+	 * Count a transaction and hold the bus for its simulated duration.
+	 * Busy-waits since parking is too coarse for microsecond transfers.
+	 */
+	private void transfer(int count) {
+		transactions.incrementAndGet();
+		bytes.addAndGet(count);
+		long duration = transactionNanos + byteNanos * count;
+		if (duration > 0) {
+			long end = System.nanoTime() + duration;
+			while (System.nanoTime() < end) {
+				//bus busy
+			}
+		}
+	}
+	
+	private byte[] device(int deviceAddr) throws IOException {
+		byte[] regs = (deviceAddr >= 0 && deviceAddr < registers.length) ? registers[deviceAddr] : null;
+		if (regs == null) {
+			throw new IOException(String.format("No acknowledge from device 0X%02X on bus %d", deviceAddr, busNumber));
+		}
+		return regs;
+	}
+	
+	/**
+	 * Store a register value; ALL_LED registers load the same byte of every LED channel.
+	 * The MODE1 RESTART flag is set when the chip is put to sleep, cleared by writing
+	 * RESTART while awake, and unaffected by writing 0. PRE_SCALE is only written while asleep.
+	 */
+	private void store(byte[] regs, int register, byte value) {
+		if (register == MODE1) {
+			int old = regs[MODE1] & 0XFF;
+			int mode1 = value & 0XFF;
+			boolean restart = (old & 0X80) != 0;
+			if ((mode1 & 0X10) != 0 && (old & 0X10) == 0) {
+				restart = true;
+			}
+			else if ((mode1 & 0X80) != 0 && (mode1 & 0X10) == 0) {
+				restart = false;
+			}
+			regs[MODE1] = (byte) ((mode1 & 0X7F) | (restart ? 0X80 : 0));
+			return;
+		}
+		if (register == PRE_SCALE && (regs[MODE1] & 0X10) == 0) {
+			return;
+		}
+		regs[register] = value;
+		if (register >= ALL_LED_ON_L && register <= ALL_LED_OFF_H) {
+			for (int led = 0; led < 16; led++) {
+				regs[LED0_ON_L + 4*led + register - ALL_LED_ON_L] = value;
+			}
+		}
+	}
+}
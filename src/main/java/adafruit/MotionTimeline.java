@@ -0,0 +1,294 @@
+package adafruit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Declarative multi-motor motion script.
+ * 
+ * Rather than chaining speed(), forward(milliseconds) and sleep() calls, the 
+ * script lists the speed of each motor at points in time:
+ * 
+ *   MotionTimeline timeline = new MotionTimeline()
+ *       .at(0,    motorLeft,  0.5f)
+ *       .at(0,    motorRight, 0.5f)
+ *       .run(1000, 500, motorWrist, -1.0f)
+ *       .at(2000, motorLeft,  0.0f)
+ *       .at(2000, motorRight, 0.0f);
+ *   timeline.compile().play();
+ * 
+ * compile() turns the script into a sorted schedule of RegisterFrames, one per
+ * point in time. Commands that do not change a motor's speed are dropped and the
+ * motors changing at the same time are sent together, merged into as few I2C 
+ * bursts as possible. The schedule runs on a single timer thread against absolute
+ * deadlines from the start time, so timing errors do not accumulate.
+ * 
+ * An emergency stop on any HAT of the schedule ends it at its next frame.
+ */
+public class MotionTimeline {
+	
+	//One scripted speed change
+	private static class Command {
+		final long time;
+		final int order;
+		final AdafruitDcMotor motor;
+		final float speed;
+		
+		Command(long time, int order, AdafruitDcMotor motor, float speed) {
+			this.time = time;
+			this.order = order;
+			this.motor = motor;
+			this.speed = speed;
+		}
+	}
+	
+	private final List<Command> commands = new ArrayList<Command>();
+	
+	/**
+	 * Set the speed of a motor at a point in time
+	 * @param milliseconds time from the start of the timeline
+	 * @param motor DC motor
+	 * @param speed Valid range -1.0 to 1.0, 0.0 stops the motor using its stop mode
+	 * @return this timeline
+	 */
+	public MotionTimeline at(long milliseconds, AdafruitDcMotor motor, float speed) {
+		if (milliseconds < 0) {
+			System.out.println("*** Error *** Timeline time must not be negative");
+			throw new IllegalArgumentException(Long.toString(milliseconds));
+		}
+		if (speed < -1.0 || speed > 1.0) {
+			System.out.println("*** Error *** Speed value must be in range -1.0 to 1.0");
+			throw new IllegalArgumentException(Float.toString(speed));
+		}
+		commands.add(new Command(milliseconds, commands.size(), motor, speed));
+		return this;
+	}
+	
+	/**
+	 * Run a motor at a speed for a duration, then stop it
+	 * @param milliseconds start time from the start of the timeline
+	 * @param duration run time in milliseconds
+	 * @param motor DC motor
+	 * @param speed Valid range -1.0 to 1.0
+	 * @return this timeline
+	 */
+	public MotionTimeline run(long milliseconds, long duration, AdafruitDcMotor motor, float speed) {
+		at(milliseconds, motor, speed);
+		return at(milliseconds + duration, motor, 0.0f);
+	}
+	
+	/**
+	 * Compile the script into a schedule of register frames.
+	 * The stop mode of each motor is captured at compile time.
+	 * @return compiled schedule, can be played any number of times
+	 */
+	public Schedule compile() {
+		List<Command> sorted = new ArrayList<Command>(commands);
+		//by time, then by HAT and register so contiguous motors merge, then script order
+		final Map<AdafruitMotorHat, Integer> hatOrder = new IdentityHashMap<AdafruitMotorHat, Integer>();
+		for (Command command : sorted) {
+			if (!hatOrder.containsKey(command.motor.getMotorHat())) {
+				hatOrder.put(command.motor.getMotorHat(), hatOrder.size());
+			}
+		}
+		Collections.sort(sorted, new Comparator<Command>() {
+			public int compare(Command a, Command b) {
+				if (a.time != b.time) {
+					return a.time < b.time ? -1 : 1;
+				}
+				int hat = hatOrder.get(a.motor.getMotorHat()) - hatOrder.get(b.motor.getMotorHat());
+				if (hat != 0) {
+					return hat;
+				}
+				if (a.motor != b.motor) {
+					return a.motor.getFrameAddr() - b.motor.getFrameAddr();
+				}
+				return a.order - b.order;
+			}
+		});
+		
+		List<Long> times = new ArrayList<Long>();
+		List<RegisterFrame> frames = new ArrayList<RegisterFrame>();
+		Map<AdafruitDcMotor, Float> current = new HashMap<AdafruitDcMotor, Float>();
+		int i = 0;
+		while (i < sorted.size()) {
+			long time = sorted.get(i).time;
+			RegisterFrame frame = new RegisterFrame();
+			while (i < sorted.size() && sorted.get(i).time == time) {
+				Command command = sorted.get(i++);
+				//a later command for the same motor at the same time wins
+				if (i < sorted.size() && sorted.get(i).time == time && sorted.get(i).motor == command.motor) {
+					continue;
+				}
+				Float previous = current.get(command.motor);
+				if (previous != null && previous.floatValue() == command.speed) {
+					continue;
+				}
+				current.put(command.motor, command.speed);
+				frame.addSpeed(command.motor, command.speed);
+			}
+			if (!frame.isEmpty()) {
+				times.add(time * 1000000L);
+				frames.add(frame);
+			}
+		}
+		
+		long[] deadlines = new long[times.size()];
+		for (int n = 0; n < deadlines.length; n++) {
+			deadlines[n] = times.get(n);
+		}
+		return new Schedule(deadlines, frames.toArray(new RegisterFrame[frames.size()]));
+	}
+	
+	/**
+	 * A compiled timeline: register frames sorted by their offset from the start time.
+	 */
+	public static class Schedule {
+		private final long[] deadlines;
+		private final RegisterFrame[] frames;
+		//Distinct HATs written by the schedule
+		private final AdafruitMotorHat[] hats;
+		private volatile Thread timer;
+		private volatile boolean cancelled;
+		
+		Schedule(long[] deadlines, RegisterFrame[] frames) {
+			this.deadlines = deadlines;
+			this.frames = frames;
+			Map<AdafruitMotorHat, Boolean> used = new IdentityHashMap<AdafruitMotorHat, Boolean>();
+			for (RegisterFrame frame : frames) {
+				for (int i = 0; i < frame.size(); i++) {
+					used.put(frame.hat(i), Boolean.TRUE);
+				}
+			}
+			this.hats = used.keySet().toArray(new AdafruitMotorHat[used.size()]);
+		}
+		
+		/**
+		 * @return number of frames, i.e. distinct points in time that write to a HAT
+		 */
+		public int size() {
+			return frames.length;
+		}
+		
+		/**
+		 * @return total number of I2C block writes in the schedule
+		 */
+		public int getWriteCount() {
+			int writes = 0;
+			for (RegisterFrame frame : frames) {
+				writes += frame.size();
+			}
+			return writes;
+		}
+		
+		/**
+		 * @return time of the last frame in milliseconds
+		 */
+		public long getDuration() {
+			return deadlines.length == 0 ? 0 : deadlines[deadlines.length - 1] / 1000000L;
+		}
+		
+		/**
+		 * Play the schedule on the timer thread and wait until it is done
+		 */
+		public void play() {
+			start(null);
+			await();
+		}
+		
+		/**
+		 * Start playing the schedule on a new timer thread
+		 * @param executor sends frames spanning several buses in parallel, may be null
+		 */
+		public synchronized void start(final MultiBusExecutor executor) {
+			if (timer != null && timer.isAlive()) {
+				System.out.println("*** Error *** Timeline is already playing");
+				throw new IllegalStateException("playing");
+			}
+			cancelled = false;
+			timer = new Thread(new Runnable() {
+				public void run() {
+					execute(executor);
+				}
+			}, "motion-timeline");
+			timer.setPriority(Thread.MAX_PRIORITY);
+			timer.start();
+		}
+		
+		/**
+		 * Wait for the timer thread to finish
+		 */
+		public void await() {
+			Thread thread = timer;
+			if (thread == null) {
+				return;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				System.out.println("*** ERROR *** Interrupted while waiting for timeline");
+				cancel();
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * Stop playing and stop all motors of the HATs used by the schedule
+		 */
+		public void cancel() {
+			cancelled = true;
+			Thread thread = timer;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+		
+		private void execute(MultiBusExecutor executor) {
+			long start = System.nanoTime();
+			for (int i = 0; i < frames.length; i++) {
+				//wait for the absolute deadline, never relative to the previous frame
+				long deadline = start + deadlines[i];
+				long remaining;
+				while (!cancelled && (remaining = deadline - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(remaining);
+				}
+				if (cancelled) {
+					stopAll();
+					return;
+				}
+				//an emergency stop ends the schedule, so clearing it does not restart the motors
+				if (isHalted()) {
+					cancelled = true;
+					return;
+				}
+				if (executor != null) {
+					executor.execute(frames[i]);
+				}
+				else {
+					frames[i].send();
+				}
+			}
+		}
+		
+		private boolean isHalted() {
+			for (AdafruitMotorHat hat : hats) {
+				if (hat.isHalted()) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		private void stopAll() {
+			for (AdafruitMotorHat hat : hats) {
+				hat.stopAll();
+			}
+		}
+	}
+}
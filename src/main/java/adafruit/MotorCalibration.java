@@ -0,0 +1,255 @@
+package adafruit;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Calibration profile for a DC motor, compensating for the deadband and 
+ * nonlinear response of real motors so that speed() produces a linear real-world
+ * speed.
+ * 
+ * A profile maps the requested speed magnitude (0.0 to 1.0) to PWM power:
+ * - speeds at or below the deadband give no power
+ * - above the deadband the speed is rescaled to 0.0-1.0 and shaped either by a 
+ *   gamma exponent (power = speed^gamma) or by measured curve points, each giving 
+ *   the power needed to reach a fraction of full speed
+ * - the shaped power is lifted so the motor starts at minStartPower
+ * 
+ * The profile is compiled once into a 4096 entry table of raw PWM values, so a 
+ * calibrated speed() is still a single array lookup.
+ * 
+ * Profiles are loaded from a properties file, keyed by HAT address and motor:
+ *   0x60.M1.deadband=0.05
+ *   0x60.M1.minStartPower=0.18
+ *   0x60.M1.gamma=0.8
+ *   0x60.M2.curve=0.25:0.35, 0.5:0.55, 0.75:0.78
+ */
+public class MotorCalibration {
+	
+	//Number of table entries, speed magnitude is quantized to 12 bits
+	public static final int TABLE_SIZE = 4096;
+	
+	//Raw PWM value for full power, as used by AdafruitDcMotor
+	static final int FULL_POWER = 255*16;
+	
+	/**
+	 * Uncalibrated linear table, raw value proportional to speed
+	 */
+	static final short[] LINEAR = new MotorCalibration(0.0f, 0.0f, 1.0f).table;
+	
+	private final float deadband;
+	private final float minStartPower;
+	private final float gamma;
+	private final float[] curveSpeeds;
+	private final float[] curvePowers;
+	private final short[] table;
+	
+	/**
+	 * Profile shaped by a gamma exponent
+	 * @param deadband speed magnitude at or below which no power is applied (0.0 to <1.0)
+	 * @param minStartPower power applied just above the deadband (0.0 to 1.0)
+	 * @param gamma curve exponent applied to the rescaled speed, 1.0 is linear
+	 */
+	public MotorCalibration(float deadband, float minStartPower, float gamma) {
+		this(deadband, minStartPower, gamma, null, null);
+	}
+	
+	/**
+	 * Profile shaped by measured curve points, linearly interpolated. 
+	 * (0,0) and (1,1) are implied end points.
+	 * @param deadband speed magnitude at or below which no power is applied (0.0 to <1.0)
+	 * @param minStartPower power applied just above the deadband (0.0 to 1.0)
+	 * @param speeds increasing fractions of full speed (0.0 to 1.0)
+	 * @param powers power needed to reach each speed (0.0 to 1.0)
+	 */
+	public MotorCalibration(float deadband, float minStartPower, float[] speeds, float[] powers) {
+		this(deadband, minStartPower, 1.0f, speeds, powers);
+	}
+	
+	private MotorCalibration(float deadband, float minStartPower, float gamma, float[] speeds, float[] powers) {
+		check(deadband >= 0.0f && deadband < 1.0f, "deadband must be in range 0.0 to <1.0", deadband);
+		check(minStartPower >= 0.0f && minStartPower <= 1.0f, "minStartPower must be in range 0.0 to 1.0", minStartPower);
+		check(gamma > 0.0f, "gamma must be greater than 0.0", gamma);
+		if (speeds != null) {
+			check(speeds.length == powers.length, "curve needs one power per speed", speeds.length);
+			for (int i = 0; i < speeds.length; i++) {
+				check(speeds[i] > 0.0f && speeds[i] < 1.0f && (i == 0 || speeds[i] > speeds[i-1]), 
+						"curve speeds must be increasing in range >0.0 to <1.0", speeds[i]);
+				check(powers[i] >= 0.0f && powers[i] <= 1.0f, "curve powers must be in range 0.0 to 1.0", powers[i]);
+			}
+		}
+		this.deadband = deadband;
+		this.minStartPower = minStartPower;
+		this.gamma = gamma;
+		this.curveSpeeds = speeds;
+		this.curvePowers = powers;
+		this.table = compile();
+	}
+	
+	private static void check(boolean valid, String message, float value) {
+		if (!valid) {
+			System.out.println("*** Error *** Calibration " + message);
+			throw new IllegalArgumentException(Float.toString(value));
+		}
+	}
+	
+	/**
+	 * Build the raw PWM value for every quantized speed magnitude
+	 */
+	private short[] compile() {
+		short[] raw = new short[TABLE_SIZE];
+		for (int i = 1; i < TABLE_SIZE; i++) {
+			float speed = (float) i / (TABLE_SIZE - 1);
+			if (speed <= deadband) {
+				continue;
+			}
+			float scaled = (speed - deadband) / (1.0f - deadband);
+			float shaped = curveSpeeds != null ? interpolate(scaled) : (float) Math.pow(scaled, gamma);
+			float power = minStartPower + (1.0f - minStartPower) * shaped;
+			raw[i] = (short) Math.round(Math.min(power, 1.0f) * FULL_POWER);
+		}
+		return raw;
+	}
+	
+	/**
+	 * Piecewise linear interpolation through (0,0), the curve points and (1,1)
+	 */
+	private float interpolate(float speed) {
+		float x0 = 0.0f;
+		float y0 = 0.0f;
+		for (int i = 0; i <= curveSpeeds.length; i++) {
+			float x1 = i < curveSpeeds.length ? curveSpeeds[i] : 1.0f;
+			float y1 = i < curveSpeeds.length ? curvePowers[i] : 1.0f;
+			if (speed <= x1) {
+				return y0 + (y1 - y0) * (speed - x0) / (x1 - x0);
+			}
+			x0 = x1;
+			y0 = y1;
+		}
+		return 1.0f;
+	}
+	
+	/**
+	 * Return the compiled table, indexed by round(abs(speed) * 4095)
+	 */
+	short[] getTable() {
+		return table;
+	}
+	
+	/**
+	 * @return speed magnitude at or below which no power is applied
+	 */
+	public float getDeadband() {
+		return deadband;
+	}
+	
+	/**
+	 * @return power applied just above the deadband
+	 */
+	public float getMinStartPower() {
+		return minStartPower;
+	}
+	
+	/**
+	 * @return curve exponent, 1.0 when the profile uses curve points
+	 */
+	public float getGamma() {
+		return gamma;
+	}
+	
+	/**
+	 * Load the calibration profiles from a properties file
+	 * @param fileName properties file
+	 * @return profiles keyed by "0x60.M1" style HAT address and motor
+	 * @throws IOException if the file can not be read
+	 */
+	public static Map<String, MotorCalibration> load(String fileName) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(fileName);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return load(properties);
+	}
+	
+	/**
+	 * Build the calibration profiles from properties
+	 * @param properties deadband, minStartPower, gamma and curve values per "0x60.M1" style key
+	 * @return profiles keyed by HAT address and motor
+	 */
+	public static Map<String, MotorCalibration> load(Properties properties) {
+		Map<String, MotorCalibration> profiles = new HashMap<String, MotorCalibration>();
+		Set<String> keys = new HashSet<String>();
+		for (String name : properties.stringPropertyNames()) {
+			int dot = name.lastIndexOf('.');
+			if (dot < 0) {
+				continue;
+			}
+			String key = name.substring(0, dot);
+			if (!keys.add(key)) {
+				continue;
+			}
+			float deadband = Float.parseFloat(properties.getProperty(key + ".deadband", "0.0"));
+			float minStartPower = Float.parseFloat(properties.getProperty(key + ".minStartPower", "0.0"));
+			String curve = properties.getProperty(key + ".curve");
+			if (curve != null) {
+				String[] points = curve.split(",");
+				float[] speeds = new float[points.length];
+				float[] powers = new float[points.length];
+				for (int i = 0; i < points.length; i++) {
+					String[] point = points[i].trim().split(":");
+					if (point.length != 2) {
+						System.out.println("*** Error *** Calibration curve points must be speed:power");
+						throw new IllegalArgumentException(name);
+					}
+					speeds[i] = Float.parseFloat(point[0].trim());
+					powers[i] = Float.parseFloat(point[1].trim());
+				}
+				profiles.put(normalize(key), new MotorCalibration(deadband, minStartPower, speeds, powers));
+			}
+			else {
+				float gamma = Float.parseFloat(properties.getProperty(key + ".gamma", "1.0"));
+				profiles.put(normalize(key), new MotorCalibration(deadband, minStartPower, gamma));
+			}
+		}
+		return profiles;
+	}
+	
+	/**
+	 * Apply the matching loaded profile to each motor; motors without a profile are left unchanged
+	 * @param profiles profiles returned by load()
+	 * @param motors DC motors
+	 */
+	public static void apply(Map<String, MotorCalibration> profiles, AdafruitDcMotor... motors) {
+		for (AdafruitDcMotor motor : motors) {
+			MotorCalibration calibration = profiles.get(key(motor.getMotorHat().DEVICE_ADDR, motor.getMotorName()));
+			if (calibration != null) {
+				motor.setCalibration(calibration);
+			}
+		}
+	}
+	
+	/**
+	 * Profile key for a HAT address and motor, e.g. "0x60.M1"
+	 */
+	static String key(int deviceAddr, String motor) {
+		return String.format("0x%02x.%s", deviceAddr, motor);
+	}
+	
+	private static String normalize(String key) {
+		int dot = key.indexOf('.');
+		if (dot < 0) {
+			System.out.println("*** Error *** Calibration key must be <HAT address>.<motor>");
+			throw new IllegalArgumentException(key);
+		}
+		return key(Integer.decode(key.substring(0, dot)), key.substring(dot + 1));
+	}
+}
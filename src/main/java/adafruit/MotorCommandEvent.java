@@ -0,0 +1,44 @@
+package adafruit;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one AdafruitDcMotor command, covering the 
+ * I2C writes it makes. Disabled by default, see I2CTransactionEvent.
+ */
+@Name("adafruit.MotorCommand")
+@Label("Motor Command")
+@Category({"Adafruit Motor HAT"})
+@Description("Speed, direction or stop command to a DC motor")
+@StackTrace(false)
+@Enabled(false)
+class MotorCommandEvent extends Event {
+	
+	@Label("Bus")
+	int bus;
+	
+	@Label("Device Address")
+	int address;
+	
+	@Label("Motor")
+	String motor;
+	
+	@Label("Command")
+	String command;
+	
+	@Label("Old State")
+	String oldState;
+	
+	@Label("New State")
+	String newState;
+	
+	@Label("Speed")
+	@Description("Speed after the command, -1.0 to 1.0")
+	float speed;
+}
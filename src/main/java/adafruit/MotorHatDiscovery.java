@@ -0,0 +1,161 @@
+package adafruit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the Motor HATs stacked on one or more I2C buses.
+ * 
+ * Every Motor HAT address (0X60 to 0X7F) is probed by reading MODE1, MODE2, 
+ * SUBADR1-SUBADR3 and ALLCALLADR; an address that does not acknowledge fails on
+ * the first read. A PCA9685 is recognized by its register signature: the MODE2
+ * bits 7-5 are reserved and read as zero, the MODE1 SUB1-SUB3 bits are off, and
+ * the subaddress and All Call registers hold their power-on values (0XE2, 0XE4, 
+ * 0XE8 and 0XE0), since the driver never changes them. Nothing is written to a
+ * device before its signature matches.
+ * 
+ * 0X70 is skipped: it is the PCA9685 power-on LED All Call address, so every 
+ * PCA9685 on the bus answers there.
+ * 
+ * The buses are scanned in parallel. Found HATs are set up together, so the 
+ * two oscillator waits of setup() are paid once per bus rather than per HAT.
+ */
+public class MotorHatDiscovery {
+	
+	//PCA9685 register addresses used by the probe
+	private static final int MODE1 = 0X00;
+	private static final int MODE2 = 0X01;
+	private static final int SUBADR1 = 0X02;
+	private static final int SUBADR2 = 0X03;
+	private static final int SUBADR3 = 0X04;
+	private static final int ALLCALLADR = 0X05;
+	
+	//LED All Call address after power-on
+	private static final int ALLCALL_ADDR = 0X70;
+	
+	/**
+	 * Scan pi4j I2C buses and return ready-to-use HATs
+	 * @param buses I2C bus numbers, e.g. I2CBus.BUS_1
+	 * @return HATs ordered by bus, then address
+	 * @throws IOException if a bus can not be opened
+	 */
+	public static List<AdafruitMotorHat> discover(int... buses) throws IOException {
+		I2CTransport[] transports = new I2CTransport[buses.length];
+		for (int i = 0; i < buses.length; i++) {
+			transports[i] = new Pi4jI2CTransport(buses[i]);
+		}
+		return discover(transports);
+	}
+	
+	/**
+	 * Scan the buses served by the transports and return ready-to-use HATs
+	 * @param transports one transport per bus
+	 * @return HATs ordered by bus, then address
+	 */
+	public static List<AdafruitMotorHat> discover(I2CTransport... transports) {
+		List<AdafruitMotorHat> hats = new ArrayList<AdafruitMotorHat>();
+		if (transports.length == 0) {
+			return hats;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(transports.length);
+		try {
+			List<Future<List<AdafruitMotorHat>>> scans = new ArrayList<Future<List<AdafruitMotorHat>>>();
+			for (final I2CTransport transport : transports) {
+				scans.add(executor.submit(new Callable<List<AdafruitMotorHat>>() {
+					public List<AdafruitMotorHat> call() {
+						return scan(transport);
+					}
+				}));
+			}
+			for (Future<List<AdafruitMotorHat>> scan : scans) {
+				hats.addAll(scan.get());
+			}
+		} catch (InterruptedException e) {
+			System.out.println("*** ERROR *** Interrupted Motor HAT discovery");
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.out.println("*** ERROR *** Motor HAT discovery failed");
+			e.getCause().printStackTrace();
+		} finally {
+			executor.shutdown();
+		}
+		return hats;
+	}
+	
+	/**
+	 * Probe every HAT address on one bus, then set up the HATs found
+	 */
+	private static List<AdafruitMotorHat> scan(I2CTransport transport) {
+		List<AdafruitMotorHat> hats = new ArrayList<AdafruitMotorHat>();
+		for (int addr = 0X60; addr <= 0X7F; addr++) {
+			if (addr != ALLCALL_ADDR && isPca9685(transport, addr)) {
+				hats.add(new AdafruitMotorHat(transport, addr, false));
+			}
+		}
+		if (hats.isEmpty()) {
+			return hats;
+		}
+		
+		List<AdafruitMotorHat> ready = new ArrayList<AdafruitMotorHat>(hats.size());
+		for (AdafruitMotorHat hat : hats) {
+			try {
+				hat.configure();
+				ready.add(hat);
+			} catch (IOException e) {
+				System.out.format("*** Error *** Motor HAT 0X%02X on bus %d failed setup%n", hat.DEVICE_ADDR, hat.getBusNumber());
+				e.printStackTrace();
+			}
+		}
+		//wait for oscillator, once for all HATs
+		sleep(5);
+		for (int i = ready.size() - 1; i >= 0; i--) {
+			try {
+				ready.get(i).wake();
+			} catch (IOException e) {
+				System.out.format("*** Error *** Motor HAT 0X%02X on bus %d failed setup%n", ready.get(i).DEVICE_ADDR, ready.get(i).getBusNumber());
+				e.printStackTrace();
+				ready.remove(i);
+			}
+		}
+		sleep(5);
+		return ready;
+	}
+	
+	/**
+	 * Does the address hold a PCA9685?
+	 */
+	private static boolean isPca9685(I2CTransport transport, int addr) {
+		try {
+			int mode1 = transport.read(addr, MODE1);
+			if (mode1 < 0 || (mode1 & 0X0E) != 0) {
+				return false;
+			}
+			int mode2 = transport.read(addr, MODE2);
+			if (mode2 < 0 || (mode2 & 0XE0) != 0) {
+				return false;
+			}
+			return transport.read(addr, SUBADR1) == 0XE2
+					&& transport.read(addr, SUBADR2) == 0XE4
+					&& transport.read(addr, SUBADR3) == 0XE8
+					&& transport.read(addr, ALLCALLADR) == 0XE0;
+		} catch (IOException e) {
+			//no acknowledge, nothing at this address
+			return false;
+		}
+	}
+	
+	private static void sleep(long milliseconds) {
+		try {
+			Thread.sleep(milliseconds);
+		} catch (InterruptedException e) {
+			System.out.println("*** ERROR *** Interrupted sleep");
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package adafruit;
+
+import com.pi4j.component.motor.MotorState;
+
+/**
+ * Guarded access to the Java Flight Recorder events of the driver.
+ *
+ * I2CTransactionEvent and MotorCommandEvent extend jdk.jfr.Event, which is
+ * missing from runtimes built without the jdk.jfr module (e.g. a jlink image).
+ * Only the nested Recorder class refers to them, and it is loaded only when
+ * jdk.jfr.Event is found, so the driver runs unchanged without JFR; begin
+ * methods then return null and commit methods do nothing.
+ *
+ * The events are loaded when AdafruitMotorHat is initialized. The first event
+ * starts the JFR machinery, a few hundred milliseconds on a Pi, which must not
+ * happen during the first motor command or emergency stop.
+ */
+final class MotorHatEvents {
+
+	//true if the events can be recorded in this runtime
+	static final boolean AVAILABLE;
+	static {
+		boolean available;
+		try {
+			Class.forName("jdk.jfr.Event");
+			Recorder.load();
+			available = true;
+		} catch (Throwable e) {
+			//no jdk.jfr module, events are not recorded
+			available = false;
+		}
+		AVAILABLE = available;
+	}
+
+	private MotorHatEvents() {
+	}
+
+	/**
+	 * Initialize this class and load the events, does nothing afterwards
+	 */
+	static void load() {
+	}
+
+	/**
+	 * Start timing an I2C transaction
+	 * @return event to pass to commitTransaction(), null if JFR is not available
+	 */
+	static Object beginTransaction() {
+		return AVAILABLE ? Recorder.beginTransaction() : null;
+	}
+
+	/**
+	 * Record an I2C transaction, if the event is enabled
+	 */
+	static void commitTransaction(Object event, int bus, int address, int register, int bytes, boolean write, String result) {
+		if (event != null) {
+			Recorder.commitTransaction(event, bus, address, register, bytes, write, result);
+		}
+	}
+
+	/**
+	 * Start timing a motor command
+	 * @return event to pass to commitCommand(), null if JFR is not available
+	 */
+	static Object beginCommand() {
+		return AVAILABLE ? Recorder.beginCommand() : null;
+	}
+
+	/**
+	 * Record a motor command, if the event is enabled
+	 */
+	static void commitCommand(Object event, int bus, int address, String motor, String command,
+			MotorState oldState, MotorState newState, float speed) {
+		if (event != null) {
+			Recorder.commitCommand(event, bus, address, motor, command, oldState, newState, speed);
+		}
+	}
+
+	/*
+	 * The only code referring to the event classes
+	 */
+	private static final class Recorder {
+
+		static void load() {
+			//instantiating the events registers them with JFR
+			new I2CTransactionEvent().shouldCommit();
+			new MotorCommandEvent().shouldCommit();
+		}
+
+		static Object beginTransaction() {
+			I2CTransactionEvent event = new I2CTransactionEvent();
+			event.begin();
+			return event;
+		}
+
+		static void commitTransaction(Object o, int bus, int address, int register, int bytes, boolean write, String result) {
+			I2CTransactionEvent event = (I2CTransactionEvent) o;
+			if (event.shouldCommit()) {
+				event.bus = bus;
+				event.address = address;
+				event.register = register;
+				event.bytes = bytes;
+				event.write = write;
+				event.result = result;
+				event.commit();
+			}
+		}
+
+		static Object beginCommand() {
+			MotorCommandEvent event = new MotorCommandEvent();
+			event.begin();
+			return event;
+		}
+
+		static void commitCommand(Object o, int bus, int address, String motor, String command,
+				MotorState oldState, MotorState newState, float speed) {
+			MotorCommandEvent event = (MotorCommandEvent) o;
+			if (event.shouldCommit()) {
+				event.bus = bus;
+				event.address = address;
+				event.motor = motor;
+				event.command = command;
+				event.oldState = String.valueOf(oldState);
+				event.newState = String.valueOf(newState);
+				event.speed = speed;
+				event.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package adafruit;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Soak and load test of the driver against a simulated HAT fleet.
+ * 
+ * Starts MemoryI2CTransport buses with a configurable latency model, stacks
+ * simulated Motor HATs on them and updates every DC motor at a fixed rate with a
+ * mix of speed, timed-move and stop commands. A timed move runs the motor at a
+ * speed and stops it after a random time without blocking the control loop; 
+ * the motor gets no other commands until then.
+ * 
+ * Every report interval it prints the sustained commands/s, end-to-end command 
+ * latency percentiles (from the control tick deadline to the end of the I2C
+ * write), late control ticks, GC count and time, and heap in use after GC; at 
+ * the end it prints the totals and the heap growth over the run.
+ * 
+ * Usage (defaults shown):
+ *   MotorHatLoadTest -hats 32 -buses 1 -rate 1000 -duration 60 -report 10
+ *                    -mix 80,15,5 -move 10 -txn 0 -byte 0 -mode frame
+ * 
+ *   -rate      control ticks per second, every motor gets a command each tick
+ *   -mix       percent of speed, timed-move and stop commands
+ *   -move      longest timed move in milliseconds
+ *   -txn/-byte simulated bus latency in nanoseconds per transaction / per byte
+ *              (e.g. -txn 50000 -byte 22500 for a 400 kHz bus)
+ *   -mode      frame:  all commands of a tick sent as one RegisterFrame, buses in parallel
+ *              direct: each command sent with AdafruitDcMotor.speed() / stop()
+ */
+public class MotorHatLoadTest {
+	
+	/**
+	 * Latency histogram with 1 microsecond buckets up to 100 milliseconds, 
+	 * recording without allocation.
+	 */
+	static class LatencyHistogram {
+		private final long[] counts = new long[100001];
+		private long total;
+		private long max;
+		
+		void record(long nanos, long count) {
+			long micros = nanos / 1000;
+			counts[(int) Math.min(Math.max(micros, 0), counts.length - 1)] += count;
+			total += count;
+			max = Math.max(max, micros);
+		}
+		
+		long percentile(double percent) {
+			long rank = (long) Math.ceil(total * percent / 100.0);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return i;
+				}
+			}
+			return 0;
+		}
+		
+		void add(LatencyHistogram other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			total += other.total;
+			max = Math.max(max, other.max);
+		}
+		
+		void reset() {
+			java.util.Arrays.fill(counts, 0);
+			total = 0;
+			max = 0;
+		}
+		
+		String summary() {
+			return String.format("p50 %5d  p90 %5d  p99 %5d  p99.9 %6d  max %6d us",
+					percentile(50), percentile(90), percentile(99), percentile(99.9), max);
+		}
+	}
+	
+	private static int hatCount = 32;
+	private static int busCount = 1;
+	private static int rate = 1000;
+	private static long duration = 60;
+	private static long report = 10;
+	private static int speedPercent = 80;
+	private static int movePercent = 15;
+	private static long moveMillis = 10;
+	private static long transactionNanos = 0;
+	private static long byteNanos = 0;
+	private static boolean frameMode = true;
+	
+	//xorshift state, avoids allocation in the control loop
+	private static long random = 0X2545F4914F6CDD1DL;
+	
+	public static void main(String[] args) {
+		parse(args);
+		
+		MemoryI2CTransport[] buses = new MemoryI2CTransport[busCount];
+		for (int b = 0; b < busCount; b++) {
+			buses[b] = new MemoryI2CTransport(b + 1);
+			buses[b].setLatency(transactionNanos, byteNanos);
+		}
+		AdafruitDcMotor[] motors = new AdafruitDcMotor[hatCount * 4];
+		final AdafruitMotorHat[] hats = new AdafruitMotorHat[hatCount];
+		for (int h = 0; h < hatCount; h++) {
+			MemoryI2CTransport bus = buses[h % busCount];
+			int addr = 0X60 + h / busCount;
+			bus.attach(addr);
+			hats[h] = new AdafruitMotorHat(bus, addr);
+			//M3, M4, M1, M2 are in register order so a HAT's motors merge into one burst
+			motors[h*4]     = hats[h].getDcMotor("M3");
+			motors[h*4 + 1] = hats[h].getDcMotor("M4");
+			motors[h*4 + 2] = hats[h].getDcMotor("M1");
+			motors[h*4 + 3] = hats[h].getDcMotor("M2");
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				for (AdafruitMotorHat hat : hats) {
+					hat.stopAll();
+				}
+			}
+		});
+		
+		System.out.format("Load test: %d HATs, %d motors, %d buses, %d Hz, %d s, mix %d/%d/%d, latency %d ns + %d ns/byte, %s mode%n",
+				hatCount, motors.length, busCount, rate, duration, speedPercent, movePercent, 
+				100 - speedPercent - movePercent, transactionNanos, byteNanos, frameMode ? "frame" : "direct");
+		
+		MultiBusExecutor executor = new MultiBusExecutor();
+		RegisterFrame frame = new RegisterFrame(hatCount);
+		long[] stopAt = new long[motors.length];
+		LatencyHistogram interval = new LatencyHistogram();
+		LatencyHistogram overall = new LatencyHistogram();
+		
+		long period = 1000000000L / rate;
+		long start = System.nanoTime();
+		long end = start + duration * 1000000000L;
+		long nextReport = start + report * 1000000000L;
+		long deadline = start;
+		long commands = 0;
+		long totalCommands = 0;
+		long lateTicks = 0;
+		long totalLateTicks = 0;
+		long reportStart = start;
+		long[] gc = gcTotals();
+		long firstHeap = -1;
+		long heap = 0;
+		
+		System.out.println("   time   commands/s  latency from tick deadline                         late ticks  GC count   GC ms  heap after GC");
+		while (deadline < end) {
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+			
+			long count = 0;
+			for (int m = 0; m < motors.length; m++) {
+				int traffic = (int) (next() % 100);
+				float speed;
+				if (stopAt[m] != 0) {
+					//timed move in progress, only the stop is sent
+					if (deadline < stopAt[m]) {
+						continue;
+					}
+					stopAt[m] = 0;
+					speed = 0.0f;
+				}
+				else if (traffic < speedPercent) {
+					speed = (next() % 2001 - 1000) / 1000.0f;
+				}
+				else if (traffic < speedPercent + movePercent) {
+					speed = (next() % 2001 - 1000) / 1000.0f;
+					stopAt[m] = deadline + (next() % moveMillis + 1) * 1000000L;
+				}
+				else {
+					speed = 0.0f;
+				}
+				if (frameMode) {
+					frame.addSpeed(motors[m], speed);
+				}
+				else {
+					if (speed == 0.0f) {
+						motors[m].stop();
+					}
+					else {
+						motors[m].speed(speed);
+					}
+					interval.record(System.nanoTime() - deadline, 1);
+				}
+				count++;
+			}
+			if (frameMode && count > 0) {
+				executor.execute(frame);
+				frame.clear();
+				interval.record(System.nanoTime() - deadline, count);
+			}
+			commands += count;
+			
+			long now = System.nanoTime();
+			deadline += period;
+			if (now > deadline) {
+				//missed the next tick, drop the backlog instead of bursting
+				lateTicks++;
+				deadline = now;
+			}
+			
+			if (now >= nextReport || deadline >= end) {
+				long[] gcNow = gcTotals();
+				heap = heapAfterGc();
+				//collection usage reads 0 until the first GC, no baseline before that
+				if (firstHeap < 0 && gcNow[0] > 0 && heap > 0) {
+					firstHeap = heap;
+				}
+				double seconds = (now - reportStart) / 1e9;
+				System.out.format("%6.0fs %12.0f  %s  %10d  %8d  %6d  %10.1f MB%n",
+						(now - start) / 1e9, commands / seconds, interval.summary(), lateTicks,
+						gcNow[0] - gc[0], gcNow[1] - gc[1], heap / 1048576.0);
+				overall.add(interval);
+				interval.reset();
+				totalCommands += commands;
+				totalLateTicks += lateTicks;
+				commands = 0;
+				lateTicks = 0;
+				gc = gcNow;
+				reportStart = now;
+				nextReport += report * 1000000000L;
+			}
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		long[] gcEnd = gcTotals();
+		System.out.println("Summary");
+		System.out.format("  commands       %d, %.0f/s sustained%n", totalCommands, totalCommands / (elapsed / 1e9));
+		System.out.format("  latency        %s%n", overall.summary());
+		System.out.format("  late ticks     %d of %d%n", totalLateTicks, elapsed / period);
+		System.out.format("  GC             %d collections, %d ms total (since JVM start)%n", gcEnd[0], gcEnd[1]);
+		if (firstHeap < 0) {
+			System.out.println("  heap growth    n/a, no GC during the run");
+		}
+		else {
+			System.out.format("  heap growth    %.1f MB (after GC, first report after a GC to last report)%n", (heap - firstHeap) / 1048576.0);
+		}
+		for (MultiBusExecutor.BusStatistics stats : executor.getStatistics()) {
+			System.out.println("  " + stats);
+		}
+		for (MemoryI2CTransport bus : buses) {
+			System.out.format("  bus %d: %d transactions, %d bytes%n", bus.getBusNumber(), bus.getTransactions(), bus.getBytes());
+		}
+		executor.shutdown();
+	}
+	
+	private static void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 >= args.length) {
+				System.out.println("*** Error *** Missing value for " + option);
+				throw new IllegalArgumentException(option);
+			}
+			String value = args[++i];
+			if (option.equals("-hats")) {
+				hatCount = Integer.parseInt(value);
+			}
+			else if (option.equals("-buses")) {
+				busCount = Integer.parseInt(value);
+			}
+			else if (option.equals("-rate")) {
+				rate = Integer.parseInt(value);
+			}
+			else if (option.equals("-duration")) {
+				duration = Long.parseLong(value);
+			}
+			else if (option.equals("-report")) {
+				report = Long.parseLong(value);
+			}
+			else if (option.equals("-mix")) {
+				String[] mix = value.split(",");
+				speedPercent = Integer.parseInt(mix[0].trim());
+				movePercent = Integer.parseInt(mix[1].trim());
+			}
+			else if (option.equals("-move")) {
+				moveMillis = Long.parseLong(value);
+			}
+			else if (option.equals("-txn")) {
+				transactionNanos = Long.parseLong(value);
+			}
+			else if (option.equals("-byte")) {
+				byteNanos = Long.parseLong(value);
+			}
+			else if (option.equals("-mode")) {
+				frameMode = !value.equals("direct");
+			}
+			else {
+				System.out.println("*** Error *** Unknown option " + option);
+				throw new IllegalArgumentException(option);
+			}
+		}
+		if (hatCount < 1 || busCount < 1 || (hatCount + busCount - 1) / busCount > 32 || rate < 1 
+				|| speedPercent < 0 || movePercent < 0 || speedPercent + movePercent > 100 || moveMillis < 1) {
+			System.out.println("*** Error *** Invalid load test options, at most 32 HATs per bus");
+			throw new IllegalArgumentException(java.util.Arrays.toString(args));
+		}
+	}
+	
+	private static long next() {
+		random ^= random << 13;
+		random ^= random >>> 7;
+		random ^= random << 17;
+		return random & Long.MAX_VALUE;
+	}
+	
+	/**
+	 * @return total GC count and GC milliseconds since JVM start
+	 */
+	private static long[] gcTotals() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(bean.getCollectionCount(), 0);
+			millis += Math.max(bean.getCollectionTime(), 0);
+		}
+		return new long[] {count, millis};
+	}
+	
+	/**
+	 * @return heap bytes in use after the last GC of each heap pool, a measure of retained memory
+	 */
+	private static long heapAfterGc() {
+		long used = 0;
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for (MemoryPoolMXBean pool : pools) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (pool.getType() == MemoryType.HEAP && usage != null) {
+				used += usage.getUsed();
+			}
+		}
+		return used;
+	}
+}
@@ -0,0 +1,180 @@
+package adafruit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends RegisterFrames with one worker thread per I2C bus.
+ * 
+ * Motor HATs on different buses are independent hardware, so execute() splits a
+ * frame by bus and sends each part on its bus thread at the same time. Blocks for 
+ * the same bus keep their frame order. execute() returns once every bus is done,
+ * even if interrupted or a bus fails, so the frame can be reused right away.
+ * 
+ * Throughput is tracked per bus and can be read with getStatistics().
+ */
+public class MultiBusExecutor {
+	
+	/**
+	 * Throughput counters for one I2C bus.
+	 */
+	public static class BusStatistics {
+		private final int bus;
+		private final AtomicLong frames = new AtomicLong();
+		private final AtomicLong writes = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		
+		BusStatistics(int bus) {
+			this.bus = bus;
+		}
+		
+		/** @return I2C bus number */
+		public int getBus() { return bus; }
+		/** @return number of frames that had blocks for this bus */
+		public long getFrames() { return frames.get(); }
+		/** @return number of block writes (I2C transactions) */
+		public long getWrites() { return writes.get(); }
+		/** @return number of register bytes written */
+		public long getBytes() { return bytes.get(); }
+		/** @return nanoseconds the bus thread spent writing */
+		public long getBusyNanos() { return busyNanos.get(); }
+		
+		/**
+		 * @return block writes per second of bus time
+		 */
+		public double getWritesPerSecond() {
+			long busy = busyNanos.get();
+			return busy == 0 ? 0.0 : writes.get() * 1e9 / busy;
+		}
+		
+		/**
+		 * @return register bytes per second of bus time
+		 */
+		public double getBytesPerSecond() {
+			long busy = busyNanos.get();
+			return busy == 0 ? 0.0 : bytes.get() * 1e9 / busy;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("bus %d: %d frames, %d writes, %d bytes, %.0f writes/s, %.0f bytes/s",
+					bus, getFrames(), getWrites(), getBytes(), getWritesPerSecond(), getBytesPerSecond());
+		}
+	}
+	
+	//Single thread executor and statistics per bus, created on first use
+	private final Map<Integer, ExecutorService> lanes = new TreeMap<Integer, ExecutorService>();
+	private final Map<Integer, BusStatistics> statistics = new TreeMap<Integer, BusStatistics>();
+	
+	/**
+	 * Send the frame, each bus on its own thread, and wait for all buses to finish
+	 * @param frame register blocks to send
+	 */
+	public void execute(final RegisterFrame frame) {
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		for (final int bus : buses(frame)) {
+			final BusStatistics stats = statistics(bus);
+			final int writes = frame.sizeOnBus(bus);
+			pending.add(lane(bus).submit(new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					long bytes = frame.sendBus(bus);
+					stats.busyNanos.addAndGet(System.nanoTime() - start);
+					stats.frames.incrementAndGet();
+					stats.writes.addAndGet(writes);
+					stats.bytes.addAndGet(bytes);
+				}
+			}));
+		}
+		//every bus must be done with the frame before the caller may clear or refill it
+		boolean interrupted = false;
+		Throwable failure = null;
+		for (Future<?> future : pending) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			System.out.println("*** ERROR *** Interrupted while waiting for I2C buses");
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			System.out.println("*** ERROR *** I2C bus write failed");
+			failure.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Return the throughput counters of every bus used so far
+	 * @return statistics ordered by bus number
+	 */
+	public synchronized List<BusStatistics> getStatistics() {
+		return new ArrayList<BusStatistics>(statistics.values());
+	}
+	
+	/**
+	 * Stop the bus threads once pending frames are sent
+	 */
+	public synchronized void shutdown() {
+		for (ExecutorService lane : lanes.values()) {
+			lane.shutdown();
+		}
+	}
+	
+	/**
+	 * Return the distinct buses targeted by the frame
+	 */
+	private static List<Integer> buses(RegisterFrame frame) {
+		List<Integer> buses = new ArrayList<Integer>(2);
+		for (int i = 0; i < frame.size(); i++) {
+			Integer bus = frame.hat(i).getBusNumber();
+			if (!buses.contains(bus)) {
+				buses.add(bus);
+			}
+		}
+		return buses;
+	}
+	
+	private synchronized BusStatistics statistics(int bus) {
+		BusStatistics stats = statistics.get(bus);
+		if (stats == null) {
+			stats = new BusStatistics(bus);
+			statistics.put(bus, stats);
+		}
+		return stats;
+	}
+	
+	private synchronized ExecutorService lane(final int bus) {
+		ExecutorService lane = lanes.get(bus);
+		if (lane == null) {
+			lane = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "i2c-bus-" + bus);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			lanes.put(bus, lane);
+		}
+		return lane;
+	}
+}
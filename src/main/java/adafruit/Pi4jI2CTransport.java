@@ -0,0 +1,72 @@
+package adafruit;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+
+/**
+ * I2CTransport backed by the pi4j I2CBus and I2CDevice classes.
+ * This is the transport used by the AdafruitMotorHat constructors that
+ * only take a device address and bus number.
+ */
+public class Pi4jI2CTransport implements I2CTransport {
+	
+	private final I2CBus bus;
+	
+	//pi4j device handle per device address
+	private final ConcurrentMap<Integer, I2CDevice> devices = new ConcurrentHashMap<Integer, I2CDevice>();
+	
+	/**
+	 * Open the pi4j I2C bus
+	 * @param i2cBus bus number, e.g. I2CBus.BUS_1
+	 * @throws IOException if the bus can not be opened
+	 */
+	public Pi4jI2CTransport(int i2cBus) throws IOException {
+		try {
+			bus = I2CFactory.getInstance(i2cBus);
+		} catch (I2CFactory.UnsupportedBusNumberException e) {
+			throw new IOException("Unsupported I2C bus " + i2cBus, e);
+		}
+	}
+	
+	/**
+	 * Return the pi4j device for the address, creating it on first use
+	 */
+	private I2CDevice device(int deviceAddr) throws IOException {
+		I2CDevice device = devices.get(deviceAddr);
+		if (device == null) {
+			device = bus.getDevice(deviceAddr);
+			devices.put(deviceAddr, device);
+		}
+		return device;
+	}
+
+	@Override
+	public int getBusNumber() {
+		return bus.getBusNumber();
+	}
+
+	@Override
+	public void write(int deviceAddr, int register, byte value) throws IOException {
+		device(deviceAddr).write(register, value);
+	}
+
+	@Override
+	public void write(int deviceAddr, int register, byte[] values, int offset, int length) throws IOException {
+		device(deviceAddr).write(register, values, offset, length);
+	}
+
+	@Override
+	public int read(int deviceAddr, int register) throws IOException {
+		return device(deviceAddr).read(register);
+	}
+
+	@Override
+	public void close() throws IOException {
+		bus.close();
+	}
+}
@@ -0,0 +1,269 @@
+package adafruit;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Acceleration-limited speed ramps for a set of DC motors, all advanced by one
+ * shared ticker thread.
+ * 
+ * ramp() precomputes the speed of every tick from the motor's current speed to
+ * the target into a step table, using a linear or S-curve profile whose steepest
+ * point respects the acceleration limit. On each tick the ticker takes the next
+ * step of every active ramp and sends all of them in one RegisterFrame: the motors
+ * are ordered by HAT and register, so each HAT gets a single burst per tick.
+ * Step tables and the frame are reused, so a tick sent on the ticker thread does 
+ * not allocate; a tick handed to a MultiBusExecutor allocates its per-bus tasks.
+ * 
+ *   RampTicker ramps = new RampTicker(10, motorLeft, motorRight);
+ *   ramps.start(null);
+ *   ramps.ramp(motorLeft, 1.0f, RampTicker.Profile.S_CURVE);
+ * 
+ * Ramps of a HAT under emergency stop are cancelled.
+ */
+public class RampTicker {
+	
+	/**
+	 * Ramp shape. LINEAR changes speed at a constant rate. S_CURVE follows 
+	 * 3t^2 - 2t^3, starting and ending with zero acceleration; its peak rate is
+	 * 1.5 times the linear rate, so it takes 1.5 times longer for the same limit.
+	 */
+	public enum Profile { LINEAR, S_CURVE }
+	
+	private final long tickNanos;
+	
+	//Motors ordered by HAT and register, with the state of their ramp
+	private final AdafruitDcMotor[] motors;
+	private final float[][] steps;
+	private final int[] stepCount;
+	private final int[] nextStep;
+	
+	//Acceleration limit, speed units per second
+	private volatile float maxAcceleration = 2.0f;
+	
+	//Frame reused by every tick, only used by the ticker thread
+	private final RegisterFrame frame;
+	
+	private volatile Thread ticker;
+	private volatile boolean running;
+	private volatile long ticks;
+	
+	/**
+	 * Create a ticker for a set of motors
+	 * @param tickMillis time between steps in milliseconds
+	 * @param motors motors that can be ramped
+	 */
+	public RampTicker(long tickMillis, AdafruitDcMotor... motors) {
+		if (tickMillis < 1) {
+			System.out.println("*** Error *** Ramp tick must be at least 1 millisecond");
+			throw new IllegalArgumentException(Long.toString(tickMillis));
+		}
+		this.tickNanos = tickMillis * 1000000L;
+		this.motors = motors.clone();
+		Arrays.sort(this.motors, new Comparator<AdafruitDcMotor>() {
+			public int compare(AdafruitDcMotor a, AdafruitDcMotor b) {
+				AdafruitMotorHat ha = a.getMotorHat();
+				AdafruitMotorHat hb = b.getMotorHat();
+				if (ha.getBusNumber() != hb.getBusNumber()) {
+					return ha.getBusNumber() - hb.getBusNumber();
+				}
+				if (ha.DEVICE_ADDR != hb.DEVICE_ADDR) {
+					return ha.DEVICE_ADDR - hb.DEVICE_ADDR;
+				}
+				return a.getFrameAddr() - b.getFrameAddr();
+			}
+		});
+		steps = new float[motors.length][];
+		stepCount = new int[motors.length];
+		nextStep = new int[motors.length];
+		frame = new RegisterFrame(motors.length);
+	}
+	
+	/**
+	 * Set the acceleration limit used by ramp(motor, target, profile)
+	 * @param speedPerSecond largest speed change per second, e.g. 2.0 goes from stop to full speed in 0.5 s
+	 */
+	public void setMaxAcceleration(float speedPerSecond) {
+		checkAcceleration(speedPerSecond);
+		maxAcceleration = speedPerSecond;
+	}
+	
+	/**
+	 * Ramp a motor from its current speed to the target with the default acceleration limit.
+	 * Replaces any ramp in progress for the motor.
+	 * @param motor DC motor passed to the constructor
+	 * @param target Valid range -1.0 to 1.0
+	 * @param profile LINEAR or S_CURVE
+	 */
+	public void ramp(AdafruitDcMotor motor, float target, Profile profile) {
+		ramp(motor, target, profile, maxAcceleration);
+	}
+	
+	/**
+	 * Ramp a motor from its current speed to the target.
+	 * Replaces any ramp in progress for the motor.
+	 * @param motor DC motor passed to the constructor
+	 * @param target Valid range -1.0 to 1.0
+	 * @param profile LINEAR or S_CURVE
+	 * @param speedPerSecond acceleration limit, largest speed change per second
+	 */
+	public synchronized void ramp(AdafruitDcMotor motor, float target, Profile profile, float speedPerSecond) {
+		if (target < -1.0 || target > 1.0) {
+			System.out.println("*** Error *** Speed value must be in range -1.0 to 1.0");
+			throw new IllegalArgumentException(Float.toString(target));
+		}
+		checkAcceleration(speedPerSecond);
+		int slot = slot(motor);
+		float start = motor.getSpeed();
+		float delta = target - start;
+		
+		//duration so that the steepest part of the profile meets the limit
+		double seconds = Math.abs(delta) / speedPerSecond * (profile == Profile.S_CURVE ? 1.5 : 1.0);
+		int count = (int) Math.max(1, Math.ceil(seconds * 1e9 / tickNanos));
+		if (steps[slot] == null || steps[slot].length < count) {
+			steps[slot] = new float[count];
+		}
+		float[] table = steps[slot];
+		for (int i = 0; i < count - 1; i++) {
+			float t = (float) (i + 1) / count;
+			float shape = (profile == Profile.S_CURVE) ? t * t * (3.0f - 2.0f * t) : t;
+			table[i] = start + delta * shape;
+		}
+		table[count - 1] = target;
+		stepCount[slot] = count;
+		nextStep[slot] = 0;
+	}
+	
+	/**
+	 * Cancel the ramp of a motor, leaving it at its current speed
+	 * @param motor DC motor passed to the constructor
+	 */
+	public synchronized void cancel(AdafruitDcMotor motor) {
+		int slot = slot(motor);
+		nextStep[slot] = stepCount[slot];
+	}
+	
+	/**
+	 * Is a ramp in progress for the motor?
+	 * @param motor DC motor passed to the constructor
+	 * @return true while ramping
+	 */
+	public synchronized boolean isRamping(AdafruitDcMotor motor) {
+		int slot = slot(motor);
+		return nextStep[slot] < stepCount[slot];
+	}
+	
+	/**
+	 * Start the ticker thread
+	 * @param executor sends ticks spanning several buses in parallel, may be null
+	 */
+	public synchronized void start(final MultiBusExecutor executor) {
+		if (running) {
+			System.out.println("*** Error *** RampTicker already running");
+			throw new IllegalStateException("running");
+		}
+		running = true;
+		ticker = new Thread(new Runnable() {
+			public void run() {
+				long deadline = System.nanoTime();
+				while (running) {
+					tick(executor);
+					deadline += tickNanos;
+					//after a late tick keep the period from now, no catch-up bursts
+					long now = System.nanoTime();
+					if (deadline < now) {
+						deadline = now;
+					}
+					long remaining;
+					while (running && (remaining = deadline - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(remaining);
+					}
+				}
+			}
+		}, "speed-ramp-ticker");
+		ticker.setDaemon(true);
+		ticker.setPriority(Thread.MAX_PRIORITY);
+		ticker.start();
+	}
+	
+	/**
+	 * Stop the ticker thread and wait for it to finish. Motors keep their current speed.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = ticker;
+			ticker = null;
+		}
+		if (thread == null) {
+			return;
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			System.out.println("*** ERROR *** Interrupted while stopping RampTicker");
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Advance every active ramp one step and send the steps in one frame.
+	 * Called by the ticker thread only, which owns the frame.
+	 * @param executor sends the frame across buses in parallel, may be null
+	 * @return number of motors stepped
+	 */
+	int tick(MultiBusExecutor executor) {
+		int count = 0;
+		synchronized (this) {
+			for (int slot = 0; slot < motors.length; slot++) {
+				if (nextStep[slot] >= stepCount[slot]) {
+					continue;
+				}
+				if (motors[slot].getMotorHat().isHalted()) {
+					nextStep[slot] = stepCount[slot];
+					continue;
+				}
+				frame.addSpeed(motors[slot], steps[slot][nextStep[slot]++]);
+				count++;
+			}
+		}
+		if (count > 0) {
+			if (executor != null) {
+				executor.execute(frame);
+			}
+			else {
+				frame.send();
+			}
+			frame.clear();
+		}
+		ticks++;
+		return count;
+	}
+	
+	/**
+	 * @return number of ticks performed
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+	
+	private int slot(AdafruitDcMotor motor) {
+		for (int slot = 0; slot < motors.length; slot++) {
+			if (motors[slot] == motor) {
+				return slot;
+			}
+		}
+		System.out.println("*** Error *** Motor is not managed by this RampTicker");
+		throw new IllegalArgumentException(motor.getName());
+	}
+	
+	private static void checkAcceleration(float speedPerSecond) {
+		if (!(speedPerSecond > 0.0f)) {
+			System.out.println("*** Error *** Acceleration limit must be greater than 0.0");
+			throw new IllegalArgumentException(Float.toString(speedPerSecond));
+		}
+	}
+}
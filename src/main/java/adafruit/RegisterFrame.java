@@ -0,0 +1,210 @@
+package adafruit;
+
+import java.util.Arrays;
+
+/**
+ * A batch of PCA9685 register writes for one or more Motor HATs, possibly on
+ * different I2C buses. Each entry is a block of consecutive registers; a block
+ * that directly follows the previous block on the same HAT is merged into it so
+ * it goes out in the same auto-increment burst. 
+ * 
+ * Motors M3, M4, M1, M2 occupy LED2 to LED13 in that order, so adding the
+ * speeds of all four motors of a HAT in that order yields a single 48 byte write.
+ * 
+ * A frame can be cleared and reused without allocating once its buffers
+ * have grown to the needed size.
+ */
+public class RegisterFrame {
+	
+	//Register blocks
+	private AdafruitMotorHat[] hats;
+	private int[] registers;
+	private int[] offsets;
+	private int[] lengths;
+	private int blocks;
+	
+	//Register values of all blocks back to back
+	private byte[] data;
+	private int used;
+	
+	//Motor speeds carried by the frame, applied to the motor state once sent
+	private AdafruitDcMotor[] motors;
+	private float[] speeds;
+	private int motorCount;
+	
+	/**
+	 * Create an empty frame
+	 */
+	public RegisterFrame() {
+		this(8);
+	}
+	
+	/**
+	 * Create an empty frame sized for the expected number of register blocks
+	 * @param capacity expected number of blocks
+	 */
+	public RegisterFrame(int capacity) {
+		capacity = Math.max(capacity, 1);
+		hats = new AdafruitMotorHat[capacity];
+		registers = new int[capacity];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		data = new byte[capacity * 12];
+		motors = new AdafruitDcMotor[capacity];
+		speeds = new float[capacity];
+	}
+	
+	/**
+	 * Add a block of consecutive register values for a Motor HAT
+	 * @param hat target Motor HAT
+	 * @param register first register address
+	 * @param values buffer holding the values
+	 * @param offset first value in the buffer
+	 * @param length number of registers
+	 * @return this frame
+	 */
+	public RegisterFrame add(AdafruitMotorHat hat, int register, byte[] values, int offset, int length) {
+		System.arraycopy(values, offset, reserve(hat, register, length), used - length, length);
+		return this;
+	}
+	
+	/**
+	 * Add the register values that set a DC motor to the speed.
+	 * A zero speed stops the motor using its stop mode, reverse braking 
+	 * is sent as coast since a frame can not wait.
+	 * @param motor DC motor
+	 * @param speed Valid range -1.0 to 1.0
+	 * @return this frame
+	 */
+	public RegisterFrame addSpeed(AdafruitDcMotor motor, float speed) {
+		if (speed < -1.0 || speed > 1.0) {
+			System.out.println("*** Error *** Speed value must be in range -1.0 to 1.0");
+			throw new IllegalArgumentException(Float.toString(speed));
+		}
+		byte[] buffer = reserve(motor.getMotorHat(), motor.getFrameAddr(), AdafruitDcMotor.FRAME_LENGTH);
+		motor.encodeSpeed(speed, buffer, used - AdafruitDcMotor.FRAME_LENGTH);
+		
+		if (motorCount == motors.length) {
+			motors = Arrays.copyOf(motors, motorCount * 2);
+			speeds = Arrays.copyOf(speeds, motorCount * 2);
+		}
+		motors[motorCount] = motor;
+		speeds[motorCount] = speed;
+		motorCount++;
+		return this;
+	}
+	
+	/**
+	 * Remove all blocks, keeping the buffers for reuse
+	 */
+	public void clear() {
+		Arrays.fill(hats, 0, blocks, null);
+		Arrays.fill(motors, 0, motorCount, null);
+		blocks = 0;
+		used = 0;
+		motorCount = 0;
+	}
+	
+	/**
+	 * @return number of register blocks, i.e. I2C transactions, in the frame
+	 */
+	public int size() {
+		return blocks;
+	}
+	
+	/**
+	 * @return true if the frame holds no register blocks
+	 */
+	public boolean isEmpty() {
+		return blocks == 0;
+	}
+	
+	/**
+	 * Send every block of the frame, in order, on the calling thread
+	 */
+	public void send() {
+		for (int i = 0; i < blocks; i++) {
+			send(i);
+		}
+		for (int i = 0; i < motorCount; i++) {
+			if (!motors[i].getMotorHat().isHalted()) {
+				motors[i].track(speeds[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Send the blocks that target the I2C bus, in frame order, on the calling thread
+	 * and apply the speeds of motors on that bus to the motor state.
+	 * @param bus I2C bus number
+	 * @return number of bytes written
+	 */
+	long sendBus(int bus) {
+		long bytes = 0;
+		for (int i = 0; i < blocks; i++) {
+			if (hats[i].getBusNumber() == bus) {
+				send(i);
+				bytes += lengths[i];
+			}
+		}
+		for (int i = 0; i < motorCount; i++) {
+			if (motors[i].getMotorHat().getBusNumber() == bus && !motors[i].getMotorHat().isHalted()) {
+				motors[i].track(speeds[i]);
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Count the blocks that target the I2C bus
+	 */
+	int sizeOnBus(int bus) {
+		int count = 0;
+		for (int i = 0; i < blocks; i++) {
+			if (hats[i].getBusNumber() == bus) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Return the HAT of a block
+	 */
+	AdafruitMotorHat hat(int block) {
+		return hats[block];
+	}
+	
+	private void send(int block) {
+		hats[block].write(registers[block], data, offsets[block], lengths[block]);
+	}
+	
+	/**
+	 * Make room for a block, merging it with the previous block when contiguous,
+	 * and return the data buffer. The block occupies the last length bytes in use.
+	 */
+	private byte[] reserve(AdafruitMotorHat hat, int register, int length) {
+		if (used + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, used + length));
+		}
+		int last = blocks - 1;
+		if (last >= 0 && hats[last] == hat && registers[last] + lengths[last] == register) {
+			lengths[last] += length;
+		}
+		else {
+			if (blocks == hats.length) {
+				hats = Arrays.copyOf(hats, blocks * 2);
+				registers = Arrays.copyOf(registers, blocks * 2);
+				offsets = Arrays.copyOf(offsets, blocks * 2);
+				lengths = Arrays.copyOf(lengths, blocks * 2);
+			}
+			hats[blocks] = hat;
+			registers[blocks] = register;
+			offsets[blocks] = used;
+			lengths[blocks] = length;
+			blocks++;
+		}
+		used += length;
+		return data;
+	}
+}
@@ -0,0 +1,282 @@
+package adafruit;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Memory-mapped speed setpoints for controllers running in other processes.
+ * 
+ * The mailbox is a fixed-layout file, normally in /dev/shm, with one slot per
+ * DC motor. An external process maps the same file and writes setpoints into the
+ * slots; a poller thread in the driver picks up changed slots and sends them to
+ * the HATs, all changes of one poll in a single RegisterFrame.
+ * 
+ * Layout, little-endian:
+ *   header, 64 bytes
+ *     0  int   magic 0X424D5248 ("HRMB")
+ *     4  int   layout version (1)
+ *     8  int   number of slots
+ *     12 int   slot size in bytes (64)
+ *   slot n at 64 + n*64
+ *     0  int   sequence number
+ *     4  float speed, -1.0 to 1.0; 0.0 stops the motor using its stop mode
+ *     8  long  writer timestamp, free for the writer's use
+ * 
+ * Each slot is protected by a seqlock with a single writer. To publish a setpoint
+ * the writer increments the sequence to an odd value, writes the payload, then
+ * increments the sequence to the next even value with a release store.
+ * The poller ignores slots whose sequence is odd or changes while it is read, 
+ * and retries them on the next poll.
+ * 
+ * Slot n commands the motor at index n of the constructor arguments; the 
+ * convention is slot = hat index * 4 + motor index (M1 = 0 ... M4 = 3).
+ * Setpoints already in the file when the poller starts are not applied.
+ */
+public class SetpointMailbox {
+	
+	public static final int MAGIC = 0X424D5248;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int SLOT_SIZE = 64;
+	
+	//Slot field offsets
+	private static final int SEQUENCE = 0;
+	private static final int SPEED = 4;
+	private static final int STAMP = 8;
+	
+	//Acquire/release access to the int fields of the mapped file, orders the seqlock across processes
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	
+	private final String fileName;
+	private final MappedByteBuffer buffer;
+	private final AdafruitDcMotor[] motors;
+	
+	//Slots ordered by HAT and register so changed motors merge into few bursts
+	private final int[] pollOrder;
+	//Last applied sequence number per slot
+	private final int[] applied;
+	//Frame reused by every poll, only used by the poller thread
+	private final RegisterFrame frame;
+	
+	private volatile Thread poller;
+	private volatile boolean running;
+	private volatile long polls;
+	private volatile long setpoints;
+	
+	/**
+	 * Map the mailbox file, creating or re-initializing it if its layout does not match
+	 * @param fileName mailbox file, e.g. /dev/shm/hellorobot-setpoints
+	 * @param motors motor for each slot, null entries leave a slot unused
+	 * @throws IOException if the file can not be mapped
+	 */
+	public SetpointMailbox(String fileName, AdafruitDcMotor... motors) throws IOException {
+		this.fileName = fileName;
+		this.motors = motors.clone();
+		int size = HEADER_SIZE + motors.length * SLOT_SIZE;
+		
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try {
+			boolean fresh = file.length() != size;
+			if (fresh) {
+				file.setLength(size);
+			}
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (fresh || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+					|| buffer.getInt(8) != motors.length || buffer.getInt(12) != SLOT_SIZE) {
+				for (int i = 0; i < size; i++) {
+					buffer.put(i, (byte) 0);
+				}
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, motors.length);
+				buffer.putInt(12, SLOT_SIZE);
+				INT.setRelease(buffer, 0, MAGIC);
+			}
+		} finally {
+			//the mapping stays valid after the file is closed
+			file.close();
+		}
+		
+		Integer[] order = new Integer[motors.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				AdafruitDcMotor ma = SetpointMailbox.this.motors[a];
+				AdafruitDcMotor mb = SetpointMailbox.this.motors[b];
+				if (ma == null || mb == null) {
+					return (ma == null ? 1 : 0) - (mb == null ? 1 : 0);
+				}
+				if (ma.getMotorHat() != mb.getMotorHat()) {
+					return ma.getMotorHat().DEVICE_ADDR != mb.getMotorHat().DEVICE_ADDR 
+							? ma.getMotorHat().DEVICE_ADDR - mb.getMotorHat().DEVICE_ADDR
+							: ma.getMotorHat().getBusNumber() - mb.getMotorHat().getBusNumber();
+				}
+				return ma.getFrameAddr() - mb.getFrameAddr();
+			}
+		});
+		pollOrder = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			pollOrder[i] = order[i];
+		}
+		applied = new int[motors.length];
+		frame = new RegisterFrame(motors.length);
+	}
+	
+	/**
+	 * Start the poller thread
+	 * @param pollMicros microseconds between polls
+	 * @param executor sends polls spanning several buses in parallel, may be null
+	 */
+	public synchronized void start(final long pollMicros, final MultiBusExecutor executor) {
+		if (running) {
+			System.out.println("*** Error *** SetpointMailbox poller already running");
+			throw new IllegalStateException(fileName);
+		}
+		//setpoints left in the file from an earlier session are not applied
+		for (int slot = 0; slot < motors.length; slot++) {
+			applied[slot] = sequence(slot) & ~1;
+		}
+		running = true;
+		poller = new Thread(new Runnable() {
+			public void run() {
+				long next = System.nanoTime();
+				while (running) {
+					poll(executor);
+					next += pollMicros * 1000L;
+					long remaining = next - System.nanoTime();
+					if (remaining > 0) {
+						LockSupport.parkNanos(remaining);
+					}
+					else {
+						next = System.nanoTime();
+					}
+				}
+			}
+		}, "setpoint-mailbox");
+		poller.setDaemon(true);
+		poller.start();
+	}
+	
+	/**
+	 * Stop the poller thread and wait for it to finish
+	 */
+	public synchronized void stop() {
+		running = false;
+		Thread thread = poller;
+		if (thread == null) {
+			return;
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			System.out.println("*** ERROR *** Interrupted while stopping SetpointMailbox poller");
+			Thread.currentThread().interrupt();
+		}
+		poller = null;
+	}
+	
+	/**
+	 * Apply every slot that changed since the last poll in one frame.
+	 * Called by the poller thread only, which owns the frame.
+	 * @param executor sends the frame across buses in parallel, may be null
+	 * @return number of setpoints applied
+	 */
+	int poll(MultiBusExecutor executor) {
+		int count = 0;
+		for (int slot : pollOrder) {
+			AdafruitDcMotor motor = motors[slot];
+			if (motor == null) {
+				continue;
+			}
+			int before = sequence(slot);
+			if (before == applied[slot] || (before & 1) != 0) {
+				continue;
+			}
+			float speed = buffer.getFloat(offset(slot) + SPEED);
+			//the payload must be read before the sequence is checked again
+			VarHandle.loadLoadFence();
+			if ((int) INT.getOpaque(buffer, offset(slot) + SEQUENCE) != before) {
+				//writer is active, try again next poll
+				continue;
+			}
+			applied[slot] = before;
+			if (speed != speed || speed < -1.0f || speed > 1.0f) {
+				System.out.println("*** Error *** SetpointMailbox slot " + slot + " speed out of range: " + speed);
+				continue;
+			}
+			frame.addSpeed(motor, speed);
+			count++;
+		}
+		if (count > 0) {
+			if (executor != null) {
+				executor.execute(frame);
+			}
+			else {
+				frame.send();
+			}
+			frame.clear();
+			setpoints += count;
+		}
+		polls++;
+		return count;
+	}
+	
+	/**
+	 * Publish a setpoint into a slot using the seqlock protocol. This is what
+	 * an external writer does; provided for Java writers mapping the same file.
+	 * Each slot must have a single writer.
+	 * @param slot slot index
+	 * @param speed Valid range -1.0 to 1.0
+	 * @param stamp writer timestamp
+	 */
+	public void publish(int slot, float speed, long stamp) {
+		int base = offset(slot);
+		int sequence = (int) INT.getOpaque(buffer, base + SEQUENCE);
+		INT.setOpaque(buffer, base + SEQUENCE, sequence + 1);
+		//the odd sequence must be visible before the payload changes
+		VarHandle.storeStoreFence();
+		buffer.putFloat(base + SPEED, speed);
+		buffer.putLong(base + STAMP, stamp);
+		INT.setRelease(buffer, base + SEQUENCE, sequence + 2);
+	}
+	
+	/**
+	 * @return number of slots
+	 */
+	public int getSlotCount() {
+		return motors.length;
+	}
+	
+	/**
+	 * @return number of polls performed
+	 */
+	public long getPolls() {
+		return polls;
+	}
+	
+	/**
+	 * @return number of setpoints applied to the motors
+	 */
+	public long getSetpoints() {
+		return setpoints;
+	}
+	
+	private int sequence(int slot) {
+		return (int) INT.getAcquire(buffer, offset(slot) + SEQUENCE);
+	}
+	
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+}